@@ -0,0 +1,22 @@
+package JSqueak;
+
+import java.io.IOException;
+
+/**
+ * Starts a VM on the bundled mini image for the benchmarks in this package,
+ * which live here to reach the VM's package-private API.  Smalltalk workloads
+ * are run through BatchEvaluator.sendMethod(), so that each invocation is a
+ * send that JMH times itself, with nothing compiled along the way.
+ */
+final class BenchmarkImage {
+
+    private BenchmarkImage() {
+    }
+
+    static SqueakVM start() throws IOException {
+        SqueakVM.initSmallIntegerCache();
+        SqueakVM vm = new SqueakVM(Starter.locateStartableImage());
+        SqueakVM.INSTANCE = vm;
+        return vm;
+    }
+}
@@ -0,0 +1,55 @@
+package JSqueak;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * BitBlt>>copyBits of a 128@128 Form onto another, at each depth and with each
+ * combination rule BitBlt implements: all up to 33 but 16 and 17, and 30 and
+ * 31, which need an alpha argument.  Select some with e.g. -p depth=8.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class BitBltBenchmark {
+
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int depth;
+
+    @Param({"0", "1", "2", "3", "4", "5", "6", "7", "8", "9", "10", "11", "12", "13", "14", "15",
+            "18", "19", "20", "21", "22", "23", "24", "25", "26", "27", "28", "29", "32", "33"})
+    public int rule;
+
+    private BatchEvaluator evaluator;
+    private SqueakObject copyBits;
+
+    @Setup
+    public void setUp() throws IOException {
+        evaluator = new BatchEvaluator(BenchmarkImage.start());
+        Object bitBlt = evaluator.value("| s d | s := Form extent: 128@128 depth: " + depth + ". "
+                + "d := Form extent: 128@128 depth: " + depth + ". "
+                + "BitBlt destForm: d sourceForm: s halftoneForm: nil combinationRule: " + rule
+                + " destOrigin: 0@0 sourceOrigin: 0@0 extent: 128@128 clipRect: d boundingBox");
+        copyBits = evaluator.sendMethod(bitBlt, "copyBits");
+    }
+
+    @Benchmark
+    public Object copyBits() {
+        return evaluator.run(copyBits);
+    }
+}
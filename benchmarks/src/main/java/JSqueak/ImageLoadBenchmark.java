@@ -0,0 +1,59 @@
+package JSqueak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading the mini image from a file, as it is bundled, gzipped, and
+ * uncompressed, which is mapped and, with jsqueak.lazyLoad, decoded lazily.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ImageLoadBenchmark {
+
+    @Param({"mini.image.gz", "mini.image"})
+    public String file;
+
+    private File image;
+
+    @Setup
+    public void setUp() throws IOException {
+        SqueakVM.initSmallIntegerCache();
+        image = File.createTempFile("bench", file);
+        try (InputStream in = Starter.class.getResourceAsStream("mini.image.gz")) {
+            byte[] bytes = ImageCodec.readFully(file.endsWith(".gz") ? in : new GZIPInputStream(in), 0);
+            Files.write(image.toPath(), bytes);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        image.delete();
+    }
+
+    @Benchmark
+    public SqueakImage load() throws IOException {
+        return new SqueakImage(image);
+    }
+}
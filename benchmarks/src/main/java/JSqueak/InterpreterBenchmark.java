@@ -0,0 +1,61 @@
+package JSqueak;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The loops of tinyBenchmarks: Integer>>benchmark, which is bytecode-heavy,
+ * and Integer>>benchFib, which is send-heavy, scored in bytecodes and sends
+ * per second as tinyBenchmarks reckons them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class InterpreterBenchmark {
+    // n benchmark runs the sieve n times, which tinyBenchmarks counts as 500000 bytecodes each
+    private static final int SIEVES = 2;
+    private static final int SIEVE_BYTECODES = 500000;
+    // n benchFib answers the number of sends it made
+    private static final int FIB = 20;
+    private static final int FIB_SENDS = 21891;
+
+    private BatchEvaluator evaluator;
+    private SqueakObject benchmark;
+    private SqueakObject benchFib;
+
+    @Setup
+    public void setUp() throws IOException {
+        evaluator = new BatchEvaluator(BenchmarkImage.start());
+        benchmark = evaluator.sendMethod(SqueakVM.smallFromInt(SIEVES), "benchmark");
+        benchFib = evaluator.sendMethod(SqueakVM.smallFromInt(FIB), "benchFib");
+        if (!SqueakVM.smallFromInt(FIB_SENDS).equals(evaluator.run(benchFib)))
+            throw new IllegalStateException(FIB + " benchFib did not answer " + FIB_SENDS);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SIEVES * SIEVE_BYTECODES)
+    public Object bytecodes() {
+        return evaluator.run(benchmark);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FIB_SENDS)
+    public Object sends() {
+        return evaluator.run(benchFib);
+    }
+}
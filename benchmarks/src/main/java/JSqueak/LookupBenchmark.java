@@ -0,0 +1,103 @@
+package JSqueak;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Method lookup of the selectors of Object in the classes that inherit them:
+ * cached, through SqueakVM.findSelectorInClass() for few enough pairs to stay
+ * in the method cache, and uncached, straight up the method dictionaries for
+ * every pair.  Each invocation looks up the next pair.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class LookupBenchmark {
+    private static final int CACHED_CLASSES = 8;
+    private static final int CACHED_SELECTORS = 32; // CACHED_CLASSES * CACHED_SELECTORS must be a power of 2
+
+    private SqueakVM vm;
+    private SqueakObject[] classes;
+    private SqueakObject[] selectors;
+    private SqueakObject[] cachedClasses;
+    private SqueakObject[] cachedSelectors;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        vm = BenchmarkImage.start();
+        SqueakObject objectClass = vm.getClass(vm.specialObjects[Squeak.splOb_SchedulerAssociation]);
+        while (objectClass.getPointer(Squeak.Class_superclass) != vm.nilObj)
+            objectClass = objectClass.getPointerNI(Squeak.Class_superclass);
+        SqueakObject metaclass = vm.getClass(vm.getClass(vm.getClass(vm.nilObj)));
+        List<SqueakObject> inheriting = new ArrayList<>();
+        for (SqueakObject meta = vm.image.nextInstance(0, metaclass); meta != vm.nilObj;
+             meta = vm.image.nextInstance(vm.image.otIndexOfObject(meta) + 1, metaclass)) {
+            SqueakObject cls = meta.getPointerNI(Squeak.Metaclass_thisClass);
+            for (SqueakObject c = cls; c != vm.nilObj; c = c.getPointerNI(Squeak.Class_superclass))
+                if (c == objectClass)
+                    inheriting.add(cls); // skip the few classes that do not inherit from Object
+        }
+        SqueakObject mDict = objectClass.getPointerNI(Squeak.Class_mdict);
+        List<SqueakObject> objectSelectors = new ArrayList<>();
+        for (int i = Squeak.MethodDict_selectorStart; i < mDict.pointersSize(); i++)
+            if (mDict.getPointer(i) != vm.nilObj)
+                objectSelectors.add(mDict.getPointerNI(i));
+        classes = pairs(inheriting, objectSelectors, true);
+        selectors = pairs(inheriting, objectSelectors, false);
+        for (int i = 0; i < classes.length; i++)
+            if (lookupUncached(classes[i], selectors[i]) == vm.nilObj)
+                throw new IllegalStateException("no method for #" + selectors[i].asString());
+        cachedClasses = pairs(inheriting.subList(0, CACHED_CLASSES), objectSelectors.subList(0, CACHED_SELECTORS), true);
+        cachedSelectors = pairs(inheriting.subList(0, CACHED_CLASSES), objectSelectors.subList(0, CACHED_SELECTORS), false);
+    }
+
+    /**
+     * @return the classes, or the selectors, of every pair of a class and a selector
+     */
+    private static SqueakObject[] pairs(List<SqueakObject> classes, List<SqueakObject> selectors, boolean byClass) {
+        SqueakObject[] pairs = new SqueakObject[classes.size() * selectors.size()];
+        for (int i = 0; i < pairs.length; i++)
+            pairs[i] = byClass ? classes.get(i / selectors.size()) : selectors.get(i % selectors.size());
+        return pairs;
+    }
+
+    @Benchmark
+    public Object cached() {
+        int i = next++ & (CACHED_CLASSES * CACHED_SELECTORS - 1);
+        return vm.findSelectorInClass(cachedSelectors[i], 0, cachedClasses[i]).method;
+    }
+
+    @Benchmark
+    public Object uncached() {
+        int i = next++;
+        if (i >= classes.length)
+            next = i = 0;
+        return lookupUncached(classes[i], selectors[i]);
+    }
+
+    private SqueakObject lookupUncached(SqueakObject cls, SqueakObject selector) {
+        for (SqueakObject c = cls; c != vm.nilObj; c = c.getPointerNI(Squeak.Class_superclass)) {
+            SqueakObject method = vm.lookupSelectorInDict(c.getPointerNI(Squeak.Class_mdict), selector);
+            if (method != vm.nilObj)
+                return method;
+        }
+        return vm.nilObj;
+    }
+}
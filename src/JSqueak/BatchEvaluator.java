@@ -0,0 +1,163 @@
+package JSqueak;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Evaluates Smalltalk source in a loaded image without opening a Screen, for
+ * running the VM as a batch job (see Starter).
+ * <p>
+ * Each expression is compiled and run by the image itself, as if by
+ * <code>(Compiler evaluate: source) printString</code> in a context with no
+ * sender, so the interpreter stops when that context returns.  The image is
+ * not started up as a whole: only the Display, bound to its own bits, and
+ * Delay are, and its UI process never runs unless the expression waits.
+ * <p>
+ * Any error that would open a debugger ends the evaluation with a
+ * SmalltalkError instead (see primitive 19 in SqueakPrimitiveHandler).
+ * Syntax errors open a SyntaxError window, which never returns here; run
+ * with a timeout to catch those.
+ */
+class BatchEvaluator {
+
+    /**
+     * An error that the image reported through Debugger openContext:label:contents:.
+     */
+    static class SmalltalkError extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final String shortStack;
+
+        SmalltalkError(String label, String shortStack) {
+            super(label);
+            this.shortStack = shortStack;
+        }
+    }
+
+    private final SqueakVM vm;
+    private final SqueakObject symbolClass;
+    private final SqueakObject compilerClass;
+    private final SqueakObject evaluateSelector;
+    private final SqueakObject printStringSelector;
+
+    BatchEvaluator(SqueakVM vm) {
+        this.vm = vm;
+        vm.primHandler.setBatchMode(true);
+        symbolClass = vm.getClass(vm.getSpecialObject(Squeak.splOb_SelectorDoesNotUnderstand));
+        evaluateSelector = findSymbol(symbolClass, "evaluate:");
+        printStringSelector = findSymbol(symbolClass, "printString");
+        compilerClass = findClass(findSymbol(symbolClass, "Compiler"));
+        evaluate("DisplayScreen startUp. Delay startUp");
+    }
+
+    /**
+     * Evaluate source and answer the printString of its value.
+     */
+    String evaluate(String source) {
+        SqueakObject doIt = newMethod(new Object[]{compilerClass, vm.primHandler.makeStString(source),
+                evaluateSelector, printStringSelector}, new byte[]{
+                32, 33,      // push Compiler, push source
+                (byte) 0xE2, // send evaluate:
+                (byte) 0xD3, // send printString
+                124});       // return top
+        Object result = run(doIt);
+        if (result instanceof SqueakObject && ((SqueakObject) result).getBits() instanceof byte[])
+            return ((SqueakObject) result).asString();
+        return vm.printString(result);
+    }
+
+    /**
+     * Evaluate source and answer its value itself, for keeping objects to send
+     * to with sendMethod().
+     */
+    Object value(String source) {
+        return run(newMethod(new Object[]{compilerClass, vm.primHandler.makeStString(source), evaluateSelector},
+                new byte[]{32, 33, (byte) 0xE2, 124}));
+    }
+
+    /**
+     * Make a method that sends selector to receiver with args, all taken as
+     * literals, and returns the answer, so that run() can repeat the send
+     * without compiling anything.
+     */
+    SqueakObject sendMethod(Object receiver, String selector, Object... args) {
+        if (args.length > 2)
+            throw new IllegalArgumentException("at most 2 arguments");
+        Object[] literals = new Object[args.length + 2];
+        literals[0] = receiver;
+        System.arraycopy(args, 0, literals, 1, args.length);
+        literals[args.length + 1] = findSymbol(symbolClass, selector);
+        byte[] code = new byte[args.length + 3];
+        for (int i = 0; i <= args.length; i++)
+            code[i] = (byte) (32 + i); // push literal i
+        code[args.length + 1] = (byte) (0xD0 + 16 * args.length + args.length + 1); // send literal selector
+        code[args.length + 2] = 124; // return top
+        return newMethod(literals, code);
+    }
+
+    /**
+     * File in the named file of chunks, as ReadWriteStream>>fileIn does.  The file
+     * is read here rather than by the image, whose FileDirectory default is
+     * still wherever the image was last saved.
+     */
+    void fileIn(String fileName) throws IOException {
+        String chunks = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.ISO_8859_1);
+        chunks = chunks.replace("\r\n", "\r").replace('\n', '\r').replace("'", "''");
+        evaluate("(ReadWriteStream with: '" + chunks + "') reset; fileIn");
+    }
+
+    /**
+     * Run aMethod, as made by sendMethod(), in a context with no sender and
+     * answer what it returns.
+     */
+    Object run(SqueakObject aMethod) {
+        SqueakObject context = vm.instantiateClass(Squeak.splOb_ClassMethodContext, Squeak.Context_largeFrameSize);
+        context.setPointer(Squeak.Context_sender, vm.nilObj);
+        context.setPointer(Squeak.Context_method, aMethod);
+        context.setPointer(Squeak.Context_receiver, vm.nilObj);
+        context.setPointer(Squeak.Context_instructionPointer, vm.encodeSqueakPC(-1, aMethod));
+        context.setPointer(Squeak.Context_stackPointer, vm.encodeSqueakSP(Squeak.Context_tempFrameStart - 1));
+        vm.activeContext = context;
+        vm.fetchContextRegisters(context);
+        try {
+            vm.run();
+        } catch (SqueakVM.TopLevelReturn done) {
+            return done.value;
+        } catch (java.io.IOException e) {
+            throw new RuntimeException(e);
+        }
+        throw new IllegalStateException("interpreter stopped without returning");
+    }
+
+    private SqueakObject newMethod(Object[] literals, byte[] code) {
+        SqueakObject newMethod = vm.instantiateClass(Squeak.splOb_ClassCompiledMethod, code.length);
+        System.arraycopy(code, 0, newMethod.getBits(), 0, code.length);
+        Object[] headerAndLits = new Object[literals.length + 1];
+        headerAndLits[0] = SqueakVM.smallFromInt((literals.length << 9) | (1 << 17)); //large frame, no temps
+        System.arraycopy(literals, 0, headerAndLits, 1, literals.length);
+        newMethod.methodAddPointers(headerAndLits);
+        return newMethod;
+    }
+
+    private SqueakObject findSymbol(SqueakObject symbolClass, String name) {
+        for (SqueakObject obj = vm.image.nextInstance(0, symbolClass); obj != vm.nilObj;
+             obj = vm.image.nextInstance(vm.image.otIndexOfObject(obj) + 1, symbolClass)) {
+            if (name.equals(obj.asString()))
+                return obj;
+        }
+        throw new IllegalStateException("Image has no symbol #" + name);
+    }
+
+    private SqueakObject findClass(SqueakObject name) {
+        //every class is the sole instance of its metaclass, an instance of Metaclass
+        SqueakObject metaclassClass = vm.getClass(vm.getClass(vm.getClass(vm.nilObj)));
+        for (SqueakObject meta = vm.image.nextInstance(0, metaclassClass); meta != vm.nilObj;
+             meta = vm.image.nextInstance(vm.image.otIndexOfObject(meta) + 1, metaclassClass)) {
+            SqueakObject cls = meta.getPointerNI(Squeak.Metaclass_thisClass);
+            if (cls.getPointer(Squeak.Class_name) == name)
+                return cls;
+        }
+        throw new IllegalStateException("Image has no class " + name.asString());
+    }
+}
@@ -269,7 +269,7 @@ public class BitBlt {
                 return false;
             halftoneHeight = checkIntValue(formPointers[2]);
             Object bitsObject = formPointers[0];
-            halftoneBits = (int[]) ((SqueakObject) bitsObject).bits;
+            halftoneBits = (int[]) ((SqueakObject) bitsObject).getBits();
             if (halftoneBits == null)
                 return false;
             if (!success || (halftoneHeight < 1))
@@ -278,7 +278,7 @@ public class BitBlt {
             //New spec accepts, basically, a word array
             if (((SqueakObject) aForm).format != 6)
                 return false;
-            halftoneBits = (int[]) ((SqueakObject) aForm).bits;
+            halftoneBits = (int[]) ((SqueakObject) aForm).getBits();
             if (halftoneBits == null || halftoneBits.length < 1)
                 return false;
             halftoneHeight = halftoneBits.length;
@@ -331,7 +331,7 @@ public class BitBlt {
             // This is an old-style color map (indexed only, with implicit RGBA conversion)
 
             cmSize = InterpreterProxy.SIZEOF(cmOop);
-            cmLookupTable = (int[]) ((SqueakObject) cmOop).bits;
+            cmLookupTable = (int[]) ((SqueakObject) cmOop).getBits();
             oldStyle = true;
         } else {
             // A new-style color map (fully qualified)
@@ -349,7 +349,7 @@ public class BitBlt {
                     return false;
                 }
                 cmSize = InterpreterProxy.SIZEOF(oop);
-                cmLookupTable = (int[]) ((SqueakObject) oop).bits;
+                cmLookupTable = (int[]) ((SqueakObject) oop).getBits();
             }
             cmFlags = cmFlags | Const.ColorMapNewStyle;
         }
@@ -492,7 +492,7 @@ public class BitBlt {
             InterpreterProxy.primitiveFail();
             return null;
         }
-        return (int[]) ((SqueakObject) mapOop).bits;
+        return (int[]) ((SqueakObject) mapOop).getBits();
     }
 
     void clipRange() {
@@ -0,0 +1,198 @@
+package JSqueak;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses an image in blocks of BLOCK_SIZE bytes, each deflated on its own,
+ * so that loading can inflate them on all cores at once, where gzip can only be
+ * inflated by one.  Files are named *.jsz, and hold MAGIC, then per block its
+ * size uncompressed and compressed, as big-endian ints, and its zlib data.
+ */
+class BlockCodec implements ImageCodec {
+    static final int MAGIC = 0x4A53515A; //"JSQZ"
+    static final int BLOCK_SIZE = 1 << 18;
+    private static final int BLOCK_HEADER = 8;
+
+    public String suffix() {
+        return ".jsz";
+    }
+
+    public boolean matches(ByteBuffer file) {
+        return file.remaining() >= 4 && file.getInt(file.position()) == MAGIC;
+    }
+
+    public ByteBuffer decode(ByteBuffer file) throws IOException {
+        //Find the blocks first, which only takes a skip per block, then inflate them
+        List<int[]> blocks = new ArrayList<>(); //position in file, size compressed, position in image, size
+        long size = 0;
+        int position = file.position() + 4;
+        while (position < file.limit()) {
+            if (position + BLOCK_HEADER > file.limit())
+                throw new IOException("corrupt block at " + position); //cut off in its header
+            int blockSize = file.getInt(position);
+            int compressedSize = file.getInt(position + 4);
+            position += BLOCK_HEADER;
+            if (blockSize < 0 || compressedSize < 0 || position + compressedSize > file.limit())
+                throw new IOException("corrupt block at " + (position - BLOCK_HEADER));
+            blocks.add(new int[]{position, compressedSize, (int) size, blockSize});
+            position += compressedSize;
+            size += blockSize;
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("image too large to inflate");
+        }
+        byte[] image = new byte[(int) size];
+        boolean parallel = SqueakConfig.PARALLEL_LOAD && Runtime.getRuntime().availableProcessors() > 1;
+        InflateTask inflateAll = new InflateTask(file, blocks, image, 0, blocks.size(), parallel);
+        try {
+            if (parallel)
+                ForkJoinPool.commonPool().invoke(inflateAll);
+            else
+                inflateAll.compute();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return ByteBuffer.wrap(image);
+    }
+
+    /**
+     * Inflates the blocks from index start up to end, each into its own part of image.
+     */
+    private static final class InflateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final ByteBuffer file;
+        private final List<int[]> blocks;
+        private final byte[] image;
+        private final int start;
+        private final int end;
+        private final boolean parallel;
+
+        InflateTask(ByteBuffer file, List<int[]> blocks, byte[] image, int start, int end, boolean parallel) {
+            this.file = file;
+            this.blocks = blocks;
+            this.image = image;
+            this.start = start;
+            this.end = end;
+            this.parallel = parallel;
+        }
+
+        protected void compute() {
+            if (parallel && end - start > 1) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new InflateTask(file, blocks, image, start, middle, true),
+                        new InflateTask(file, blocks, image, middle, end, true));
+                return;
+            }
+            for (int i = start; i < end; i++)
+                inflate(file, blocks.get(i), image);
+        }
+    }
+
+    private static void inflate(ByteBuffer file, int[] block, byte[] image) {
+        ByteBuffer compressed = file.duplicate();
+        compressed.position(block[0]);
+        byte[] input = new byte[block[1]];
+        compressed.get(input);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(input);
+            int n = 0;
+            while (n < block[3] && !inflater.finished() && !inflater.needsInput())
+                n += inflater.inflate(image, block[2] + n, block[3] - n);
+            if (n != block[3] || !inflater.finished())
+                throw new DataFormatException("block is " + n + " bytes, not " + block[3]);
+        } catch (DataFormatException e) {
+            throw new UncheckedIOException(new IOException("corrupt block at " + (block[0] - BLOCK_HEADER), e));
+        } finally {
+            inflater.end();
+        }
+    }
+
+    public WritableByteChannel encoder(WritableByteChannel out) throws IOException {
+        return new BlockEncoder(out);
+    }
+
+    /**
+     * Gathers what is written into a block, and writes the block out deflated
+     * when it is full or the channel is closed.
+     */
+    private static final class BlockEncoder implements WritableByteChannel {
+        private final WritableByteChannel out;
+        private final ByteBuffer block = ByteBuffer.allocate(BLOCK_SIZE);
+        private final Deflater deflater = new Deflater();
+        private byte[] compressed = new byte[BLOCK_SIZE];
+        private boolean open = true;
+
+        BlockEncoder(WritableByteChannel out) throws IOException {
+            this.out = out;
+            ByteBuffer magic = ByteBuffer.allocate(4);
+            magic.putInt(MAGIC);
+            magic.flip();
+            write(out, magic);
+        }
+
+        public int write(ByteBuffer src) throws IOException {
+            int n = src.remaining();
+            while (src.hasRemaining()) {
+                if (!block.hasRemaining())
+                    writeBlock();
+                ByteBuffer part = src.duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), block.remaining()));
+                block.put(part);
+                src.position(part.position());
+            }
+            return n;
+        }
+
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block.array(), 0, block.position());
+            deflater.finish();
+            int size = 0;
+            while (!deflater.finished()) {
+                if (size == compressed.length)
+                    compressed = Arrays.copyOf(compressed, 2 * compressed.length);
+                size += deflater.deflate(compressed, size, compressed.length - size);
+            }
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER);
+            header.putInt(block.position());
+            header.putInt(size);
+            header.flip();
+            write(out, header);
+            write(out, ByteBuffer.wrap(compressed, 0, size));
+            block.clear();
+        }
+
+        private static void write(WritableByteChannel out, ByteBuffer bytes) throws IOException {
+            while (bytes.hasRemaining())
+                out.write(bytes);
+        }
+
+        public boolean isOpen() {
+            return open;
+        }
+
+        public void close() throws IOException {
+            if (!open)
+                return;
+            open = false;
+            try {
+                if (block.position() > 0)
+                    writeBlock();
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package JSqueak;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts the sequences of n consecutive instructions the interpreter executes,
+ * to choose which ones DecodedMethod should fuse into superinstructions.
+ * <p>
+ * Enabled by -Djsqueak.ngrams=n (2..5); the most frequent sequences are printed
+ * when the VM exits.  Instructions are classified by their unfused opcode, with
+ * the detail that matters for fusing: the constant pushed, the arithmetic
+ * selector or the argument count.  Operands such as temp and literal indices are
+ * ignored, so "pushTemp pushTemp" covers any two temps.  A sequence only counts
+ * when its instructions follow each other in the same method, i.e. sends and
+ * taken jumps break it.
+ */
+class BytecodeNGrams {
+    private static final String[] OP_NAMES = {
+            "nono", "pushRcvrVar", "pushTemp", "pushLit", "pushLitVar",
+            "storePopRcvrVar", "storePopTemp", "storePopLitVar", "storeRcvrVar", "storeTemp", "storeLitVar",
+            "pushRcvr", "pushTrue", "pushFalse", "pushNil", "pushInt", "returnRcvr", "returnTrue",
+            "returnFalse", "returnNil", "returnTop", "blockReturn", "pop", "dup", "pushContext", "send",
+            "superSend", "jump", "jumpBack", "jumpTrue", "jumpFalse", "+", "-", "<", ">", "<=", ">=", "=", "~=",
+            "*", "/", "\\\\", "@", "bitShift:", "//", "bitAnd:", "bitOr:", "special", "doubleExtended"};
+    private static final String[] SPECIAL_NAMES = {"at:", "at:put:", "size", "next", "nextPut:", "atEnd", "==",
+            "class", "blockCopy:", "value", "value:", "do:", "new", "new:", "x", "y"};
+
+    private final int n;
+    private final Map<Long, long[]> counts = new HashMap<>();
+    private long total;
+    // the instructions of the current run of consecutive ones, most recent last
+    private final long[] window;
+    private int windowSize;
+    private SqueakObject lastMethod;
+    private int nextPc;
+
+    BytecodeNGrams(int n) {
+        this.n = Math.max(2, Math.min(n, 5));
+        window = new long[this.n];
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> report(System.out, 40)));
+    }
+
+    /**
+     * Note the instruction starting at pc, about to be executed.
+     */
+    void record(SqueakObject method, int pc, byte[] bytes) {
+        int insn = DecodedMethod.decode(bytes, pc);
+        if (method != lastMethod || pc != nextPc)
+            windowSize = 0;
+        lastMethod = method;
+        nextPc = pc + 1 + ((insn >>> 8) & 3) + ((insn & 0xFF) == DecodedMethod.OP_DOUBLE_EXTENDED ? 1 : 0);
+        if (windowSize == n) {
+            System.arraycopy(window, 1, window, 0, n - 1);
+            windowSize--;
+        }
+        window[windowSize++] = classify(insn);
+        if (windowSize < n)
+            return;
+        long key = 0;
+        for (int i = 0; i < n; i++)
+            key = (key << 12) | window[i];
+        long[] count = counts.get(key);
+        if (count == null)
+            counts.put(key, count = new long[1]);
+        count[0]++;
+        total++;
+    }
+
+    private static long classify(int insn) {
+        int op = insn & 0xFF;
+        int detail = 0;
+        switch (op) {
+            case DecodedMethod.OP_PUSH_INT:
+                detail = (insn >> 20) + 1;
+                break;
+            case DecodedMethod.OP_SPECIAL_SEND:
+                detail = (insn >>> 10) & 0x3FF;
+                break;
+            case DecodedMethod.OP_SEND:
+            case DecodedMethod.OP_SUPER_SEND:
+                detail = Math.min(insn >> 20, 63);
+                break;
+        }
+        return (op << 6) | detail;
+    }
+
+    private static String name(long element) {
+        int op = (int) (element >> 6);
+        int detail = (int) (element & 63);
+        switch (op) {
+            case DecodedMethod.OP_PUSH_INT:
+                return "pushInt(" + (detail - 1) + ")";
+            case DecodedMethod.OP_SPECIAL_SEND:
+                return SPECIAL_NAMES[detail];
+            case DecodedMethod.OP_SEND:
+            case DecodedMethod.OP_SUPER_SEND:
+                return OP_NAMES[op] + detail;
+        }
+        return op < OP_NAMES.length ? OP_NAMES[op] : "op" + op;
+    }
+
+    /**
+     * Print the top most frequent sequences with their share of all those counted.
+     */
+    void report(PrintStream out, int top) {
+        List<Map.Entry<Long, long[]>> entries = new ArrayList<>(counts.entrySet());
+        entries.sort((e1, e2) -> Long.compare(e2.getValue()[0], e1.getValue()[0]));
+        out.println("Most frequent " + n + "-instruction sequences of " + total + ":");
+        for (int i = 0; i < Math.min(top, entries.size()); i++) {
+            long key = entries.get(i).getKey();
+            long count = entries.get(i).getValue()[0];
+            StringBuilder line = new StringBuilder();
+            for (int j = n - 1; j >= 0; j--)
+                line.append(' ').append(name((key >> (12 * j)) & 0xFFF));
+            out.printf("%12d %5.1f%% %s%n", count, 100.0 * count / total, line);
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package JSqueak;
+
+/**
+ * The bytecodes of a CompiledMethod, decoded once for SqueakVM.runDecoded().
+ * <p>
+ * There is one instruction word per byte of the method, so the interpreter's pc
+ * (and therefore everything stored in contexts) stays the same as when running
+ * from the raw bytes.  Each word is decoded independently of its neighbours, so
+ * any pc the interpreter may resume at finds a valid instruction.
+ * <p>
+ * An instruction word holds:
+ * <pre>
+ *   bits  0..7   opcode (OP_xxx below)
+ *   bits  8..9   number of extension bytes to step over
+ *   bits 10..19  operand A (unsigned): an index
+ *   bits 20..31  operand B (signed): argument count, jump offset or constant
+ * </pre>
+ * The rarely used forms of doubleExtendedDoAnything become OP_DOUBLE_EXTENDED, which
+ * leaves fetching the third byte to SqueakVM.doubleExtendedDoAnything() as usual.
+ * <p>
+ * Where a frequent sequence of short bytecodes starts, its first word is replaced
+ * by a superinstruction that does the whole sequence (see fuse(); BytecodeNGrams
+ * finds candidates).  The words after it keep their own instructions for jumps
+ * and returns into the middle of the sequence.  A superinstruction that has to
+ * send does so from the last byte of its sequence, as the last bytecode would.
+ */
+class DecodedMethod {
+    static final int OP_NONO = 0;
+    static final int OP_PUSH_RCVR_VAR = 1;
+    static final int OP_PUSH_TEMP = 2;
+    static final int OP_PUSH_LIT = 3;
+    static final int OP_PUSH_LIT_VAR = 4;
+    static final int OP_STORE_POP_RCVR_VAR = 5;
+    static final int OP_STORE_POP_TEMP = 6;
+    static final int OP_STORE_POP_LIT_VAR = 7;
+    static final int OP_STORE_RCVR_VAR = 8;
+    static final int OP_STORE_TEMP = 9;
+    static final int OP_STORE_LIT_VAR = 10;
+    static final int OP_PUSH_RCVR = 11;
+    static final int OP_PUSH_TRUE = 12;
+    static final int OP_PUSH_FALSE = 13;
+    static final int OP_PUSH_NIL = 14;
+    static final int OP_PUSH_INT = 15;
+    static final int OP_RETURN_RCVR = 16;
+    static final int OP_RETURN_TRUE = 17;
+    static final int OP_RETURN_FALSE = 18;
+    static final int OP_RETURN_NIL = 19;
+    static final int OP_RETURN_TOP = 20;
+    static final int OP_BLOCK_RETURN = 21;
+    static final int OP_POP = 22;
+    static final int OP_DUP = 23;
+    static final int OP_PUSH_CONTEXT = 24;
+    static final int OP_SEND = 25;
+    static final int OP_SUPER_SEND = 26;
+    static final int OP_JUMP = 27;
+    static final int OP_JUMP_BACK = 28;
+    static final int OP_JUMP_IF_TRUE = 29;
+    static final int OP_JUMP_IF_FALSE = 30;
+    static final int OP_ADD = 31;
+    static final int OP_SUBTRACT = 32;
+    static final int OP_LESS = 33;
+    static final int OP_GREATER = 34;
+    static final int OP_LESS_OR_EQUAL = 35;
+    static final int OP_GREATER_OR_EQUAL = 36;
+    static final int OP_EQUAL = 37;
+    static final int OP_NOT_EQUAL = 38;
+    static final int OP_MULTIPLY = 39;
+    static final int OP_DIVIDE = 40;
+    static final int OP_MOD = 41;
+    static final int OP_MAKE_POINT = 42;
+    static final int OP_BIT_SHIFT = 43;
+    static final int OP_DIV = 44;
+    static final int OP_BIT_AND = 45;
+    static final int OP_BIT_OR = 46;  // OP_ADD..OP_BIT_OR are the bytecodes 176..191 in order
+    static final int OP_SPECIAL_SEND = 47;  // A is the special selector index (0..15)
+    static final int OP_DOUBLE_EXTENDED = 48;  // A is the second byte
+    static final int OP_COMPILED = 49;  // only in jitEntries: run jitCode from here
+    // Superinstructions
+    static final int OP_PUSH_TEMP_TEMP = 50;  // A, B are the temps
+    static final int OP_STORE_POP_TEMP_PUSH_TEMP = 51;  // A, B are the temps
+    static final int OP_PUSH_PUSH_ARITH = 52;  // see fuse()
+
+    final byte[] bytes; //the bytecodes decoded, so activating needs no getBits()
+    final int[] code;
+
+    // Tiering, only for SqueakConfig.JIT
+    int hotness; // activations plus backward jumps, counted up to SqueakConfig.JIT_THRESHOLD
+    JitCode jitCode; // the method compiled by JitCompiler, or null
+    int[] jitEntries; // same length as code, all OP_COMPILED once jitCode is set
+
+    DecodedMethod(byte[] bytes) {
+        this.bytes = bytes;
+        code = decodeAll(bytes);
+        if (SqueakConfig.SUPERINSTRUCTIONS)
+            for (int pc = 0; pc < bytes.length; pc++)
+                code[pc] = fuse(bytes, pc, code[pc]);
+    }
+
+    /**
+     * Decode every byte without superinstructions.
+     */
+    static int[] decodeAll(byte[] bytes) {
+        int[] insns = new int[bytes.length];
+        for (int pc = 0; pc < bytes.length; pc++)
+            insns[pc] = decode(bytes, pc);
+        return insns;
+    }
+
+    /**
+     * Answer the superinstruction for the sequence starting at pc, if there is one.
+     * OP_PUSH_PUSH_ARITH is [push receiver or temp][push temp or -1..2][+ - < > <= >= = ~=]:
+     * the low 7 bits of A are the temp index or 0 for the receiver, the high 3 bits the
+     * arithmetic bytecode - 176; B is the temp index or the constant.
+     */
+    private static int fuse(byte[] bytes, int pc, int insn) {
+        if (pc + 1 >= bytes.length)
+            return insn;
+        int b0 = bytes[pc] & 0xFF;
+        int b1 = bytes[pc + 1] & 0xFF;
+        int b2 = pc + 2 < bytes.length ? bytes[pc + 2] & 0xFF : 0;
+        boolean pushTemp0 = b0 >= 16 && b0 < 32;
+        boolean pushTemp1 = b1 >= 16 && b1 < 32;
+        if ((pushTemp0 || b0 == 112) && (pushTemp1 || b1 >= 116 && b1 <= 119) && b2 >= 176 && b2 <= 183) {
+            int first = pushTemp0 ? Squeak.Context_tempFrameStart + (b0 & 0xF) : 0;
+            int second = pushTemp1 ? Squeak.Context_tempFrameStart + (b1 & 0xF) : b1 - 117;
+            return insn(OP_PUSH_PUSH_ARITH, 2, ((b2 - 176) << 7) | first, second);
+        }
+        if (pushTemp0 && pushTemp1)
+            return insn(OP_PUSH_TEMP_TEMP, 1, Squeak.Context_tempFrameStart + (b0 & 0xF),
+                    Squeak.Context_tempFrameStart + (b1 & 0xF));
+        if (b0 >= 104 && b0 < 112 && pushTemp1)
+            return insn(OP_STORE_POP_TEMP_PUSH_TEMP, 1, Squeak.Context_tempFrameStart + (b0 & 7),
+                    Squeak.Context_tempFrameStart + (b1 & 0xF));
+        return insn;
+    }
+
+    /**
+     * The instructions the interpreter should fetch from when (re)entering this method.
+     */
+    int[] entryCode() {
+        return jitEntries != null ? jitEntries : code;
+    }
+
+    /**
+     * Count an activation or backward jump, compiling the method once it gets hot.
+     * Answers true if it has just been compiled.
+     */
+    boolean countHotness(SqueakObject method) {
+        if (hotness >= SqueakConfig.JIT_THRESHOLD || ++hotness < SqueakConfig.JIT_THRESHOLD)
+            return false;
+        return JitCompiler.compile(method, this);
+    }
+
+    static int insn(int op, int extension, int a, int b) {
+        return op | (extension << 8) | (a << 10) | (b << 20);
+    }
+
+    static int decode(byte[] bytes, int pc) {
+        int b = bytes[pc] & 0xFF;
+        int ext1 = pc + 1 < bytes.length ? bytes[pc + 1] & 0xFF : -1;
+        int ext2 = pc + 2 < bytes.length ? bytes[pc + 2] & 0xFF : -1;
+        switch (b >> 4) {
+            case 0:
+                return insn(OP_PUSH_RCVR_VAR, 0, b & 0xF, 0);
+            case 1:
+                return insn(OP_PUSH_TEMP, 0, Squeak.Context_tempFrameStart + (b & 0xF), 0);
+            case 2:
+            case 3:
+                return insn(OP_PUSH_LIT, 0, b & 0x1F, 0);
+            case 4:
+            case 5:
+                return insn(OP_PUSH_LIT_VAR, 0, b & 0x1F, 0);
+            case 6:
+                if (b < 104)
+                    return insn(OP_STORE_POP_RCVR_VAR, 0, b & 7, 0);
+                return insn(OP_STORE_POP_TEMP, 0, Squeak.Context_tempFrameStart + (b & 7), 0);
+            case 7:
+                return decodeQuick(b);
+            case 8:
+                return decodeExtended(b, ext1, ext2);
+            case 9:
+                if (b < 152)
+                    return insn(OP_JUMP, 0, 0, (b & 7) + 1);
+                return insn(OP_JUMP_IF_FALSE, 0, 0, (b & 7) + 1);
+            case 10:
+                if (ext1 < 0)
+                    break;
+                if (b < 168) {
+                    int delta = ((b & 7) - 4) * 256 + ext1;
+                    return insn(delta < 0 ? OP_JUMP_BACK : OP_JUMP, 1, 0, delta);
+                }
+                return insn(b < 172 ? OP_JUMP_IF_TRUE : OP_JUMP_IF_FALSE, 1, 0, (b & 3) * 256 + ext1);
+            case 11:
+                return insn(OP_ADD + (b - 176), 0, 0, 0);  // + - < > <= >= = ~= * / \\ @ bitShift: // bitAnd: bitOr:
+            case 12:
+                return insn(OP_SPECIAL_SEND, 0, b & 0xF, 0);
+            case 13:
+                return insn(OP_SEND, 0, b & 0xF, 0);
+            case 14:
+                return insn(OP_SEND, 0, b & 0xF, 1);
+            case 15:
+                return insn(OP_SEND, 0, b & 0xF, 2);
+        }
+        return insn(OP_NONO, 0, 0, 0);  // truncated at the end of the method
+    }
+
+    private static int decodeQuick(int b) {
+        switch (b) {
+            case 112:
+                return insn(OP_PUSH_RCVR, 0, 0, 0);
+            case 113:
+                return insn(OP_PUSH_TRUE, 0, 0, 0);
+            case 114:
+                return insn(OP_PUSH_FALSE, 0, 0, 0);
+            case 115:
+                return insn(OP_PUSH_NIL, 0, 0, 0);
+            case 116:
+            case 117:
+            case 118:
+            case 119:
+                return insn(OP_PUSH_INT, 0, 0, b - 117);
+            case 120:
+                return insn(OP_RETURN_RCVR, 0, 0, 0);
+            case 121:
+                return insn(OP_RETURN_TRUE, 0, 0, 0);
+            case 122:
+                return insn(OP_RETURN_FALSE, 0, 0, 0);
+            case 123:
+                return insn(OP_RETURN_NIL, 0, 0, 0);
+            case 124:
+                return insn(OP_RETURN_TOP, 0, 0, 0);
+            case 125:
+                return insn(OP_BLOCK_RETURN, 0, 0, 0);
+        }
+        return insn(OP_NONO, 0, 0, 0);  // 126, 127
+    }
+
+    private static int decodeExtended(int b, int ext1, int ext2) {
+        int lobits = ext1 & 63;
+        if (ext1 < 0 && b < 135)
+            return insn(OP_NONO, 0, 0, 0);  // truncated at the end of the method
+        switch (b) {
+            case 128:
+                switch (ext1 >> 6) {
+                    case 0:
+                        return insn(OP_PUSH_RCVR_VAR, 1, lobits, 0);
+                    case 1:
+                        return insn(OP_PUSH_TEMP, 1, Squeak.Context_tempFrameStart + lobits, 0);
+                    case 2:
+                        return insn(OP_PUSH_LIT, 1, lobits, 0);
+                    default:
+                        return insn(OP_PUSH_LIT_VAR, 1, lobits, 0);
+                }
+            case 129:
+                switch (ext1 >> 6) {
+                    case 0:
+                        return insn(OP_STORE_RCVR_VAR, 1, lobits, 0);
+                    case 1:
+                        return insn(OP_STORE_TEMP, 1, Squeak.Context_tempFrameStart + lobits, 0);
+                    case 3:
+                        return insn(OP_STORE_LIT_VAR, 1, lobits, 0);
+                }
+                break;
+            case 130:
+                switch (ext1 >> 6) {
+                    case 0:
+                        return insn(OP_STORE_POP_RCVR_VAR, 1, lobits, 0);
+                    case 1:
+                        return insn(OP_STORE_POP_TEMP, 1, Squeak.Context_tempFrameStart + lobits, 0);
+                    case 3:
+                        return insn(OP_STORE_POP_LIT_VAR, 1, lobits, 0);
+                }
+                break;
+            case 131:
+                return insn(OP_SEND, 1, ext1 & 31, ext1 >> 5);
+            case 132:
+                if (ext2 < 0)
+                    break;
+                switch (ext1 >> 5) {
+                    case 0:
+                        return insn(OP_SEND, 2, ext2, ext1 & 31);
+                    case 1:
+                        return insn(OP_SUPER_SEND, 2, ext2, ext1 & 31);
+                    case 2:
+                        return insn(OP_PUSH_RCVR_VAR, 2, ext2, 0);
+                    case 3:
+                        return insn(OP_PUSH_LIT, 2, ext2, 0);
+                }
+                return insn(OP_DOUBLE_EXTENDED, 1, ext1, 0);
+            case 133:
+                return insn(OP_SUPER_SEND, 1, ext1 & 31, ext1 >> 5);
+            case 134:
+                return insn(OP_SEND, 1, ext1 & 63, ext1 >> 6);
+            case 135:
+                return insn(OP_POP, 0, 0, 0);
+            case 136:
+                return insn(OP_DUP, 0, 0, 0);
+            case 137:
+                return insn(OP_PUSH_CONTEXT, 0, 0, 0);
+        }
+        return insn(OP_NONO, 0, 0, 0);  // 138..143 and stores into literals
+    }
+}
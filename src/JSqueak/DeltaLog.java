@@ -0,0 +1,281 @@
+package JSqueak;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * The log of the objects that changed since a full snapshot, kept next to the
+ * image as its name + ".delta", so that checkpoints only write what changed
+ * (see SqueakImage.saveIncrementally).  Loading the image replays it.
+ * <p>
+ * Changes are found by comparing a 64-bit fingerprint of every live object with
+ * the one it had at the last checkpoint, rather than by marking objects dirty, as
+ * the interpreter stores into pointers and bits directly in too many places for
+ * a write barrier.  A change that happens to leave the fingerprint the same, a
+ * chance of about 2^-64 per changed object, is missed until the object changes
+ * again or the next full snapshot.  Bits still mapped from a lazily loaded image
+ * are fingerprinted where they are, once, as they can only change by being
+ * decoded.  Objects created since the snapshot get oops past its heap.
+ * <p>
+ * The log starts with the stamp of the snapshot it follows, as a long, then
+ * holds a record of big-endian words per checkpoint:
+ * <pre>
+ * RECORD_MAGIC, size of the record in words, lastHash, oop of the special objects array, object count,
+ * then for each object: oop, class oop, format, hash, field count, fields as in the image
+ * </pre>
+ * A record cut short, by a crash while appending it, is ignored.
+ */
+class DeltaLog {
+    private static final int RECORD_MAGIC = 0x4A534431; //"JSD1"
+    private static final int RECORD_HEADER = 5;
+    private static final int ENTRY_HEADER = 5;
+
+    /**
+     * The oop an object was written with, and its fingerprint when last written.
+     */
+    private static final class Known {
+        final int oop;
+        long fingerprint;
+        Object hashedBits; //the mapped bits bitsHash was taken of, or null
+        long bitsHash;
+
+        Known(int oop) {
+            this.oop = oop;
+        }
+    }
+
+    private final File imageFile;
+    private final File file;
+    private final long imageSize;
+    private final Map<SqueakObject, Known> known = new WeakHashMap<>();
+    private int nextOop;
+    private Object nilObj;
+
+    /**
+     * Start an empty log for the full snapshot stamped stamp that writer has just
+     * written of objects to imageFile.
+     */
+    DeltaLog(File imageFile, long stamp, SqueakObject[] objects, ImageWriter writer) throws IOException {
+        this.imageFile = imageFile.getAbsoluteFile();
+        file = fileFor(imageFile);
+        imageSize = imageFile.length();
+        for (SqueakObject obj : objects)
+            known.put(obj, new Known(writer.oopOf(obj)));
+        for (SqueakObject obj : objects)
+            known.get(obj).fingerprint = fingerprint(obj, known.get(obj));
+        nextOop = ImageWriter.BASE_ADDRESS + writer.endOfMemory() + 4;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = ByteBuffer.allocate(8);
+            header.putLong(stamp);
+            header.flip();
+            while (header.hasRemaining())
+                channel.write(header);
+        }
+    }
+
+    static File fileFor(File imageFile) {
+        return new File(imageFile.getAbsoluteFile().getParentFile(), imageFile.getName() + ".delta");
+    }
+
+    boolean isFor(File fn) {
+        return imageFile.equals(fn.getAbsoluteFile());
+    }
+
+    /**
+     * Whether the log has grown big enough that a full snapshot would be better.
+     */
+    boolean isDueForFullSave() {
+        return file.length() > imageSize / 2;
+    }
+
+    /**
+     * Append a record of those of objects, every live object in table order,
+     * that are new or changed since they were last written.
+     */
+    void append(SqueakObject[] objects, SqueakObject specialObjectsArray, int lastHash) throws IOException {
+        nilObj = specialObjectsArray.getPointer(Squeak.splOb_NilObject);
+        boolean[] changed = new boolean[objects.length];
+        for (int i = 0; i < objects.length; i++) {
+            if (!known.containsKey(objects[i])) {
+                known.put(objects[i], new Known(nextOop));
+                nextOop += 4;
+                changed[i] = true;
+            }
+        }
+        int count = 0;
+        int size = RECORD_HEADER;
+        for (int i = 0; i < objects.length; i++) {
+            Known entry = known.get(objects[i]);
+            long fingerprint = fingerprint(objects[i], entry);
+            if (changed[i] || fingerprint != entry.fingerprint) {
+                entry.fingerprint = fingerprint;
+                changed[i] = true;
+                count++;
+                size += ENTRY_HEADER + ImageWriter.bodyWords(objects[i]);
+            }
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+                StandardOpenOption.APPEND)) {
+            ImageWriter out = new DeltaWriter(channel);
+            out.putWord(RECORD_MAGIC);
+            out.putWord(size);
+            out.putWord(lastHash);
+            out.putWord(out.oopOf(specialObjectsArray));
+            out.putWord(count);
+            for (int i = 0; i < objects.length; i++) {
+                if (changed[i]) {
+                    SqueakObject obj = objects[i];
+                    out.putWord(out.oopOf(obj));
+                    out.putWord(out.oopOf(obj.sqClass));
+                    out.putWord(ImageWriter.formatOf(obj));
+                    out.putWord(obj.hash & 0xFFF);
+                    out.putWord(ImageWriter.bodyWords(obj));
+                    out.writeBody(obj);
+                }
+            }
+            out.flush();
+            channel.force(false);
+        }
+    }
+
+    private long fingerprint(SqueakObject obj, Known entry) {
+        long h = mix(mix(obj.hash, obj.format), oopIn(obj.sqClass));
+        if (obj instanceof SqueakFloat)
+            return mix(h, Double.doubleToRawLongBits(obj.getFloatBits()));
+        if (obj.pointers != null) {
+            h = mix(h, obj.pointers.length);
+            for (Object ptr : obj.pointers)
+                h = mix(h, oopIn(ptr));
+        }
+        if (!(obj instanceof SqueakBits))
+            return h;
+        Object bits = ((SqueakBits) obj).bits; //not getBits(), which would decode mapped bits
+        if (bits instanceof SqueakBits.Mapped) {
+            //read-only, so the same mapped bits still hash the same
+            if (bits != entry.hashedBits) {
+                entry.hashedBits = bits;
+                entry.bitsHash = bitsHash(obj.format, (SqueakBits.Mapped) bits);
+            }
+            return mix(h, entry.bitsHash);
+        }
+        entry.hashedBits = null; //decoded, so let go of the mapped file
+        return mix(h, bitsHash(bits));
+    }
+
+    private static long bitsHash(Object bits) {
+        long h = 0;
+        if (bits instanceof byte[]) {
+            h = mix(h, ((byte[]) bits).length);
+            for (byte b : (byte[]) bits)
+                h = mix(h, b);
+        } else if (bits instanceof int[]) {
+            h = mix(h, ((int[]) bits).length);
+            for (int word : (int[]) bits)
+                h = mix(h, word);
+        }
+        return h;
+    }
+
+    /**
+     * @return the bitsHash of the bits mapped decodes to, without decoding them
+     */
+    private static long bitsHash(int format, SqueakBits.Mapped mapped) {
+        IntBuffer heap = mapped.heap;
+        if (format < 8) {
+            long h = mix(0, mapped.nWords);
+            for (int i = 0; i < mapped.nWords; i++)
+                h = mix(h, heap.get(mapped.start + i));
+            return h;
+        }
+        int nBytes = (mapped.nWords * 4) - (format & 3);
+        long h = mix(0, nBytes);
+        for (int i = 0; i < nBytes; i++)
+            h = mix(h, (byte) (heap.get(mapped.start + (i >> 2)) >> (8 * (3 - (i & 3)))));
+        return h;
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * 0x9E3779B97F4A7C15L;
+        return h ^ (h >>> 29);
+    }
+
+    private long oopIn(Object ptr) {
+        if (ptr instanceof Integer)
+            return ((long) (Integer) ptr << 1) | 1;
+        Known entry = ptr instanceof SqueakObject ? known.get(ptr) : null;
+        return entry == null ? 0 : entry.oop;
+    }
+
+    /**
+     * Writes pointers with the oops this log has given the objects.
+     */
+    private class DeltaWriter extends ImageWriter {
+        DeltaWriter(WritableByteChannel out) {
+            super(out);
+        }
+
+        int oopOf(Object obj) throws IOException {
+            if (obj == null)
+                obj = nilObj;
+            Known entry = obj instanceof SqueakObject ? known.get(obj) : null;
+            if (entry == null)
+                throw new IOException("cannot write a pointer to " + obj);
+            return entry.oop;
+        }
+    }
+
+    /**
+     * Replay the log next to imageFile, if it follows the snapshot stamped stamp,
+     * onto image, whose objects were loaded from it with the oops in oopMap.
+     */
+    static void replay(File imageFile, long stamp, SqueakImage image, OopMap oopMap, int floatOop) throws IOException {
+        File file = fileFor(imageFile);
+        if (stamp == 0 || !file.exists())
+            return;
+        ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (log.remaining() < 8 || log.getLong() != stamp) {
+            System.err.println("Ignoring " + file + ", which was not written after this image");
+            return;
+        }
+        IntBuffer logWords = log.asIntBuffer();
+        int[] words = new int[logWords.remaining()];
+        logWords.get(words);
+        IntBuffer wordBuffer = IntBuffer.wrap(words);
+        int record = 0;
+        while (record + RECORD_HEADER <= words.length && words[record] == RECORD_MAGIC
+                && words[record + 1] >= RECORD_HEADER && record + words[record + 1] <= words.length) {
+            int count = words[record + 4];
+            //Create the objects new in this record first, as the others may point to them
+            int entry = record + RECORD_HEADER;
+            for (int n = 0; n < count; n++, entry += ENTRY_HEADER + words[entry + 4]) {
+                int oop = words[entry];
+                int classOop = words[entry + 1];
+                int format = words[entry + 2];
+                int hash = words[entry + 3];
+                SqueakObject obj = oopMap.get(oop);
+                if (obj == null) {
+                    obj = SqueakObject.fromImage(format, hash, format == 6 && classOop == floatOop);
+                    image.registerObject(obj);
+                    oopMap.put(oop, obj);
+                } else {
+                    obj.format = (short) format;
+                    obj.hash = (short) hash;
+                }
+            }
+            entry = record + RECORD_HEADER;
+            for (int n = 0; n < count; n++, entry += ENTRY_HEADER + words[entry + 4])
+                oopMap.get(words[entry]).install(oopMap, null, words[entry + 1], wordBuffer, entry + ENTRY_HEADER, words[entry + 4]);
+            image.replayed(oopMap.get(words[record + 3]), words[record + 2]);
+            record += words[record + 1];
+        }
+    }
+}
@@ -0,0 +1,327 @@
+package JSqueak;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A histogram of the objects of an image by class, for finding what an image
+ * that grows is filled with: how many instances each class has, how much of the
+ * Java heap they take themselves, and how much they retain, that is, would be
+ * freed if they went, from the dominator tree of the objects reachable from the
+ * roots (the special objects array, and the active context when running).
+ * <p>
+ * Written as CSV, a row per class, most retained first:
+ * <pre>
+ * class,instances,pointerBytes,bitsBytes,shallowBytes,retainedBytes
+ * </pre>
+ * Shallow sizes are estimates for a 64-bit JVM with compressed oops: the
+ * SqueakObject itself, plus its array of pointers, plus its bits as decoded.
+ * The retained size of a class counts each object once, even where instances
+ * of it retain other instances of it.  Objects that are not reachable, but not
+ * yet collected by the JVM, are counted as instances but retain nothing.
+ * <p>
+ * Written by primitive 254 (see SqueakPrimitiveHandler), or for an image file by
+ * <pre>
+ * java JSqueak.HeapHistogram image [file.csv]
+ * </pre>
+ */
+public class HeapHistogram {
+    private static final int OBJECT_HEADER = 12;
+    private static final int ARRAY_HEADER = 16;
+    private static final int REFERENCE = 4;
+
+    /**
+     * The instances of one class.
+     */
+    static final class Row {
+        final SqueakObject sqClass;
+        long instances;
+        long pointerBytes;
+        long bitsBytes;
+        long shallowBytes;
+        long retainedBytes;
+        private int depth; //instances on the dominator tree path being walked
+
+        Row(SqueakObject sqClass) {
+            this.sqClass = sqClass;
+        }
+    }
+
+    private final SqueakObject[] objects;
+    private final SqueakObject[] roots;
+    private final List<Row> rows = new ArrayList<>();
+    private final int[] rowOf; //by node: objects are nodes 1..n, and 0 is above the roots
+    private ObjectIntMap nodes;
+
+    /**
+     * Make the histogram of objects, which must include every object any of them
+     * points to, as for SqueakImage.heapHistogram().
+     */
+    HeapHistogram(SqueakObject[] objects, SqueakObject... roots) {
+        this.objects = objects;
+        this.roots = roots;
+        rowOf = new int[objects.length + 1];
+        Map<Object, Integer> rowIndices = new IdentityHashMap<>();
+        for (int i = 0; i < objects.length; i++) {
+            SqueakObject obj = objects[i];
+            Integer index = rowIndices.get(obj.sqClass);
+            if (index == null) {
+                index = rows.size();
+                rowIndices.put(obj.sqClass, index);
+                rows.add(new Row((SqueakObject) obj.sqClass));
+            }
+            rowOf[i + 1] = index;
+            Row row = rows.get(index);
+            row.instances++;
+            row.pointerBytes += pointerBytes(obj);
+            row.bitsBytes += bitsBytes(obj);
+            row.shallowBytes += shallowBytes(obj);
+        }
+        computeRetainedBytes();
+        rows.sort((a, b) -> a.retainedBytes != b.retainedBytes ? Long.compare(b.retainedBytes, a.retainedBytes)
+                : Long.compare(b.shallowBytes, a.shallowBytes));
+    }
+
+    List<Row> rows() {
+        return rows;
+    }
+
+    /**
+     * @return the estimated bytes of the Java heap that obj takes itself
+     */
+    static long shallowBytes(SqueakObject obj) {
+        int fieldBytes = 2 + 2 + 2 * REFERENCE; //hash, format, sqClass, pointers
+        if (obj instanceof SqueakBits)
+            fieldBytes += REFERENCE;
+        if (obj instanceof SqueakMethod)
+            fieldBytes += 2 * REFERENCE;
+        if (obj instanceof SqueakFloat)
+            fieldBytes += 8;
+        if (obj instanceof SqueakContext)
+            fieldBytes += 1;
+        return align(OBJECT_HEADER + fieldBytes) + pointerBytes(obj) + bitsBytes(obj);
+    }
+
+    private static long pointerBytes(SqueakObject obj) {
+        return obj.pointers == null ? 0 : align(ARRAY_HEADER + (long) REFERENCE * obj.pointers.length);
+    }
+
+    private static long bitsBytes(SqueakObject obj) {
+        if (!(obj instanceof SqueakBits) || ((SqueakBits) obj).bits == null)
+            return 0;
+        Object bits = ((SqueakBits) obj).bits; //not getBits(), which would decode mapped bits
+        long size = ((SqueakBits) obj).bitsSize();
+        boolean bytes = bits instanceof byte[] || !(bits instanceof int[]) && obj.format >= 8;
+        return align(ARRAY_HEADER + (bytes ? size : 4 * size));
+    }
+
+    private static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    /**
+     * @return the number of pointers from node: its class, then its pointers
+     */
+    private int degree(int node) {
+        if (node == 0)
+            return roots.length;
+        SqueakObject obj = objects[node - 1];
+        return 1 + (obj.pointers == null ? 0 : obj.pointers.length);
+    }
+
+    /**
+     * @return the node that pointer k of node points to, or 0 if none
+     */
+    private int target(int node, int k) {
+        Object ptr;
+        if (node == 0)
+            ptr = roots[k];
+        else if (k == 0)
+            ptr = objects[node - 1].sqClass;
+        else
+            ptr = objects[node - 1].pointers[k - 1];
+        return ptr instanceof SqueakObject ? nodes.get((SqueakObject) ptr) : 0;
+    }
+
+    /**
+     * Find the immediate dominators by the iterative algorithm of Cooper, Harvey
+     * and Kennedy, then sum shallow sizes up the dominator tree.
+     */
+    private void computeRetainedBytes() {
+        int n = objects.length + 1;
+        nodes = new ObjectIntMap(objects.length);
+        for (int i = 0; i < objects.length; i++)
+            nodes.put(objects[i], i + 1);
+
+        //Number the reachable nodes in postorder, so that node 0 comes last
+        int[] post = new int[n];
+        int[] order = new int[n];
+        Arrays.fill(post, -1);
+        int count = 0;
+        int[] stack = new int[n];
+        int[] edge = new int[n];
+        boolean[] seen = new boolean[n];
+        int sp = 0;
+        stack[0] = 0;
+        seen[0] = true;
+        while (sp >= 0) {
+            int node = stack[sp];
+            if (edge[sp] < degree(node)) {
+                int next = target(node, edge[sp]++);
+                if (next != 0 && !seen[next]) {
+                    seen[next] = true;
+                    stack[++sp] = next;
+                    edge[sp] = 0;
+                }
+            } else {
+                post[node] = count;
+                order[count++] = node;
+                sp--;
+            }
+        }
+
+        //Predecessors, by postorder number
+        int[] predStart = new int[count + 1];
+        for (int b = 0; b < count; b++) {
+            int node = order[b];
+            for (int k = 0; k < degree(node); k++) {
+                int next = target(node, k);
+                if (next != 0)
+                    predStart[post[next] + 1]++;
+            }
+        }
+        for (int b = 0; b < count; b++)
+            predStart[b + 1] += predStart[b];
+        int[] preds = new int[predStart[count]];
+        int[] fill = Arrays.copyOf(predStart, count);
+        for (int b = 0; b < count; b++) {
+            int node = order[b];
+            for (int k = 0; k < degree(node); k++) {
+                int next = target(node, k);
+                if (next != 0)
+                    preds[fill[post[next]]++] = b;
+            }
+        }
+
+        int root = count - 1;
+        int[] idom = new int[count];
+        Arrays.fill(idom, -1);
+        idom[root] = root;
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int b = root - 1; b >= 0; b--) {
+                int newIdom = -1;
+                for (int p = predStart[b]; p < predStart[b + 1]; p++) {
+                    int pred = preds[p];
+                    if (idom[pred] == -1)
+                        continue;
+                    if (newIdom == -1) {
+                        newIdom = pred;
+                    } else {
+                        int f1 = pred, f2 = newIdom;
+                        while (f1 != f2) {
+                            while (f1 < f2)
+                                f1 = idom[f1];
+                            while (f2 < f1)
+                                f2 = idom[f2];
+                        }
+                        newIdom = f1;
+                    }
+                }
+                if (idom[b] != newIdom) {
+                    idom[b] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        //A dominator comes after what it dominates in postorder
+        long[] retained = new long[count];
+        for (int b = 0; b < root; b++)
+            retained[b] = shallowBytes(objects[order[b] - 1]);
+        for (int b = 0; b < root; b++)
+            retained[idom[b]] += retained[b];
+
+        //Walk the dominator tree, crediting a class only with the instances that no other one dominates
+        int[] childStart = new int[count + 1];
+        for (int b = 0; b < root; b++)
+            childStart[idom[b] + 1]++;
+        for (int b = 0; b < count; b++)
+            childStart[b + 1] += childStart[b];
+        int[] children = new int[root];
+        fill = Arrays.copyOf(childStart, count);
+        for (int b = 0; b < root; b++)
+            children[fill[idom[b]]++] = b;
+        sp = 0;
+        stack[0] = root;
+        edge[0] = childStart[root];
+        while (sp >= 0) {
+            int b = stack[sp];
+            if (edge[sp] < childStart[b + 1]) {
+                int child = children[edge[sp]++];
+                Row row = rows.get(rowOf[order[child]]);
+                if (row.depth++ == 0)
+                    row.retainedBytes += retained[child];
+                stack[++sp] = child;
+                edge[sp] = childStart[child];
+            } else {
+                if (b != root)
+                    rows.get(rowOf[order[b]]).depth--;
+                sp--;
+            }
+        }
+        nodes = null;
+    }
+
+    void write(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            write(out);
+        }
+    }
+
+    void write(PrintWriter out) {
+        out.println("class,instances,pointerBytes,bitsBytes,shallowBytes,retainedBytes");
+        for (Row row : rows) {
+            out.println(csvField(className(row.sqClass)) + "," + row.instances + "," + row.pointerBytes + ","
+                    + row.bitsBytes + "," + row.shallowBytes + "," + row.retainedBytes);
+        }
+    }
+
+    private static String className(SqueakObject cls) {
+        try {
+            return SamplingProfiler.className(cls);
+        } catch (RuntimeException e) {
+            return cls.toString(); //not shaped like a class, in a broken image
+        }
+    }
+
+    private static String csvField(String field) {
+        if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0)
+            return field;
+        return '"' + field.replace("\"", "\"\"") + '"';
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: HeapHistogram image [file.csv]");
+            System.exit(2);
+        }
+        SqueakVM.initSmallIntegerCache();
+        HeapHistogram histogram = new SqueakImage(new File(args[0])).heapHistogram();
+        if (args.length == 2) {
+            histogram.write(args[1]);
+        } else {
+            PrintWriter out = new PrintWriter(System.out);
+            histogram.write(out);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package JSqueak;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * How an image file is compressed.  Loading picks the codec by the magic at the
+ * start of the file, and saving by the suffix of its name, so any image format
+ * can be held in any codec; a file that no codec claims is taken as uncompressed.
+ * To add a codec, give it a magic and a suffix of its own and list it in CODECS.
+ */
+interface ImageCodec {
+    int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * @return the suffix of the names of files saved with this codec
+     */
+    String suffix();
+
+    /**
+     * @return whether file, from its position, was written by this codec
+     */
+    boolean matches(ByteBuffer file);
+
+    /**
+     * @return the contents of file, from its position, uncompressed
+     */
+    ByteBuffer decode(ByteBuffer file) throws IOException;
+
+    /**
+     * @return a channel that compresses what is written to it onto out, and
+     * closes out when it is closed
+     */
+    WritableByteChannel encoder(WritableByteChannel out) throws IOException;
+
+    ImageCodec RAW = new ImageCodec() {
+        public String suffix() {
+            return "";
+        }
+
+        public boolean matches(ByteBuffer file) {
+            return true;
+        }
+
+        public ByteBuffer decode(ByteBuffer file) {
+            return file;
+        }
+
+        public WritableByteChannel encoder(WritableByteChannel out) {
+            return out;
+        }
+    };
+
+    ImageCodec GZIP = new ImageCodec() {
+        public String suffix() {
+            return ".gz";
+        }
+
+        public boolean matches(ByteBuffer file) {
+            int start = file.position();
+            return file.remaining() >= 2 && (file.get(start) & 0xFF) == 0x1F && (file.get(start + 1) & 0xFF) == 0x8B;
+        }
+
+        public ByteBuffer decode(ByteBuffer file) throws IOException {
+            //the trailer holds the size uncompressed, modulo 2^32, which is only a hint
+            int size = file.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(file.limit() - 4);
+            try (InputStream in = new GZIPInputStream(new BufferInputStream(file.duplicate()), BUFFER_SIZE)) {
+                return ByteBuffer.wrap(readFully(in, size));
+            }
+        }
+
+        public WritableByteChannel encoder(WritableByteChannel out) throws IOException {
+            return Channels.newChannel(new GZIPOutputStream(Channels.newOutputStream(out), BUFFER_SIZE));
+        }
+    };
+
+    ImageCodec BLOCKS = new BlockCodec();
+
+    List<ImageCodec> CODECS = Arrays.asList(GZIP, BLOCKS);
+
+    static ImageCodec forMagic(ByteBuffer file) {
+        for (ImageCodec codec : CODECS) {
+            if (codec.matches(file))
+                return codec;
+        }
+        return RAW;
+    }
+
+    static ImageCodec forName(File fn) {
+        for (ImageCodec codec : CODECS) {
+            if (fn.getName().endsWith(codec.suffix()))
+                return codec;
+        }
+        return RAW;
+    }
+
+    /**
+     * @return the name of fn without the suffix of its codec, which tells its format
+     */
+    static String imageName(File fn) {
+        String name = fn.getName();
+        return name.substring(0, name.length() - forName(fn).suffix().length());
+    }
+
+    /**
+     * Read in to its end, expecting about sizeHint bytes.
+     */
+    static byte[] readFully(InputStream in, int sizeHint) throws IOException {
+        byte[] bytes = new byte[Math.max(sizeHint, BUFFER_SIZE)];
+        int size = 0;
+        for (int n; (n = in.read(bytes, size, bytes.length - size)) >= 0; ) {
+            size += n;
+            if (size == bytes.length) {
+                int next = in.read();
+                if (next < 0)
+                    break;
+                bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+                bytes[size++] = (byte) next;
+            }
+        }
+        return size == bytes.length ? bytes : Arrays.copyOf(bytes, size);
+    }
+
+    /**
+     * Streams the remaining bytes of a buffer, such as a file mapped into memory.
+     */
+    final class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        public int read(byte[] bytes, int offset, int length) {
+            if (length == 0)
+                return 0;
+            if (!buffer.hasRemaining())
+                return -1;
+            int n = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, n);
+            return n;
+        }
+
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package JSqueak;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts an image between the standard format and JSqueak's native one (see
+ * NativeImageFormat), either way, or between codecs (see ImageCodec):
+ * <pre>
+ * java JSqueak.ImageConverter from to
+ * </pre>
+ * The format of from is told by its contents, and that of to by its name:
+ * *.jsq for native, else standard, then *.gz for gzipped, *.jsz for block
+ * compressed, else uncompressed; as in mini.jsq.jsz.  The image
+ * is not run, so what is written is exactly what was read.
+ */
+public class ImageConverter {
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: ImageConverter from to");
+            System.exit(2);
+        }
+        SqueakVM.initSmallIntegerCache();
+        SqueakImage image = new SqueakImage(new File(args[0]));
+        image.save(new File(args[1]));
+    }
+}
@@ -0,0 +1,23 @@
+package JSqueak;
+
+/**
+ * How long the phases of loading an image took, and how much was loaded.
+ * Printed at startup with -Djsqueak.loadMetrics=true; see SqueakImage.loadMetrics().
+ */
+class ImageLoadMetrics {
+    long readNanos;     //inflating and reading the file into memory
+    long parseNanos;    //splitting the heap into object headers and words
+    long createNanos;   //making and registering an object per header
+    long installNanos;  //decoding pointers, bytes and floats
+    long bytes;
+    int objects;
+
+    long totalNanos() {
+        return readNanos + parseNanos + createNanos + installNanos;
+    }
+
+    public String toString() {
+        return String.format("Loaded %d objects (%d bytes) in %.1f ms: read %.1f, parse %.1f, create %.1f, install %.1f",
+                objects, bytes, totalNanos() / 1e6, readNanos / 1e6, parseNanos / 1e6, createNanos / 1e6, installNanos / 1e6);
+    }
+}
@@ -0,0 +1,206 @@
+package JSqueak;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Writes objects as the heap of a standard Squeak image, format 6502, as
+ * SqueakImage reads it: big-endian, with one, two or three header words per
+ * object as its size and class call for.
+ * <p>
+ * Objects get their oops in the order given, which is object table order, in
+ * a first pass; the second streams them out through one reused buffer, so
+ * nothing is allocated per object but the entry that maps it to its oop.
+ * What is written for each object may be a frozen copy of its state, so that
+ * a background thread can write an image that the interpreter goes on changing.
+ */
+class ImageWriter {
+    static final int HEADER_SIZE = 64;
+    // above the compact class indices, which the class field of a header would be mistaken for
+    static final int BASE_ADDRESS = 0x10000;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final Map<SqueakObject, Integer> compactClasses = new IdentityHashMap<>();
+    private ObjectIntMap oops;
+    private int endOfMemory;
+    private Object nilObj;
+
+    ImageWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the image header and objects, which must include every object any of
+     * them points to.  states holds what to write for each object: the object
+     * itself, or its frozenCopy(), whose pointers are to the objects.  A nonzero
+     * stamp identifies this snapshot to the DeltaLog that may follow it.
+     */
+    void write(SqueakObject[] objects, SqueakObject[] states, SqueakObject specialObjectsArray, int lastHash,
+               int savedWindowSize, long stamp) throws IOException {
+        int count = objects.length;
+        SqueakObject specialObjects = states[indexOf(objects, specialObjectsArray)];
+        nilObj = specialObjects.getPointer(Squeak.splOb_NilObject);
+        SqueakObject compactClassArray = specialObjects.getPointerNI(Squeak.splOb_CompactClasses);
+        Object[] ccArray = states[indexOf(objects, compactClassArray)].pointers;
+        for (int i = 0; i < ccArray.length; i++) {
+            if (ccArray[i] != nilObj)
+                compactClasses.put((SqueakObject) ccArray[i], i + 1);
+        }
+        oops = new ObjectIntMap(count);
+        endOfMemory = 0;
+        for (int i = 0; i < count; i++) {
+            SqueakObject state = states[i];
+            endOfMemory += 4 * (headerWords(state) - 1);
+            oops.put(objects[i], BASE_ADDRESS + endOfMemory);
+            endOfMemory += 4 * (1 + bodyWords(state));
+        }
+
+        putWord(6502);
+        putWord(HEADER_SIZE);
+        putWord(endOfMemory);
+        putWord(BASE_ADDRESS);
+        putWord(oopOf(specialObjectsArray));
+        putWord(lastHash);
+        putWord(savedWindowSize);
+        putWord(0); //fullScreenFlag
+        putWord(0); //extraVMMemory
+        putWord((int) (stamp >>> 32));
+        putWord((int) stamp);
+        for (int i = 11; i < HEADER_SIZE / 4; i++)
+            putWord(0); //unused
+        for (int i = 0; i < count; i++)
+            writeObject(states[i]);
+        flush();
+    }
+
+    private static int indexOf(SqueakObject[] objects, SqueakObject obj) throws IOException {
+        for (int i = 0; i < objects.length; i++) {
+            if (objects[i] == obj)
+                return i;
+        }
+        throw new IOException("cannot write an image without " + obj);
+    }
+
+    private int headerWords(SqueakObject obj) {
+        if (bodyWords(obj) + 1 > 63)
+            return 3;
+        return compactClasses.containsKey(obj.sqClass) ? 1 : 2;
+    }
+
+    /**
+     * @return the size of the heap written
+     */
+    int endOfMemory() {
+        return endOfMemory;
+    }
+
+    static int bodyWords(SqueakObject obj) {
+        if (obj instanceof SqueakFloat)
+            return 2;
+        int pointerWords = obj.pointers == null ? 0 : obj.pointers.length;
+        Object bits = bitsOf(obj);
+        if (bits instanceof SqueakBits.Mapped)
+            return pointerWords + ((SqueakBits.Mapped) bits).nWords;
+        if (bits instanceof byte[])
+            return pointerWords + (((byte[]) bits).length + 3) / 4;
+        if (bits instanceof int[])
+            return pointerWords + ((int[]) bits).length;
+        return pointerWords;
+    }
+
+    static int formatOf(SqueakObject obj) {
+        if (obj instanceof SqueakFloat)
+            return 6;
+        Object bits = bitsOf(obj);
+        if (bits instanceof byte[]) //the low bits count the unused bytes of the last word
+            return (obj instanceof SqueakMethod ? 12 : 8) | (-((byte[]) bits).length & 3);
+        if (bits instanceof int[])
+            return 6;
+        return obj.format;
+    }
+
+    private void writeObject(SqueakObject obj) throws IOException {
+        int nWords = bodyWords(obj) + 1;
+        int header = ((obj.hash & 0xFFF) << 17) | (formatOf(obj) << 8);
+        int classOop = oopOf(obj.sqClass);
+        if (nWords > 63) {
+            putWord((nWords << 2) | Squeak.HeaderTypeSizeAndClass);
+            putWord(classOop | Squeak.HeaderTypeSizeAndClass);
+            putWord(header | Squeak.HeaderTypeSizeAndClass);
+        } else if (compactClasses.containsKey(obj.sqClass)) {
+            putWord(header | (compactClasses.get(obj.sqClass) << 12) | (nWords << 2) | Squeak.HeaderTypeShort);
+        } else {
+            putWord(classOop | Squeak.HeaderTypeClass);
+            putWord(header | (nWords << 2) | Squeak.HeaderTypeClass);
+        }
+        writeBody(obj);
+    }
+
+    /**
+     * Write the fields of obj, after its header.
+     */
+    void writeBody(SqueakObject obj) throws IOException {
+        if (obj instanceof SqueakFloat) {
+            long floatBits = Double.doubleToRawLongBits(obj.getFloatBits());
+            putWord((int) (floatBits >>> 32));
+            putWord((int) floatBits);
+            return;
+        }
+        if (obj.pointers != null) {
+            for (Object ptr : obj.pointers)
+                putWord(ptr instanceof Integer ? (((Integer) ptr) << 1) | 1 : oopOf(ptr));
+        }
+        Object bits = bitsOf(obj);
+        if (bits instanceof SqueakBits.Mapped) {
+            SqueakBits.Mapped mapped = (SqueakBits.Mapped) bits;
+            for (int i = 0; i < mapped.nWords; i++)
+                putWord(mapped.heap.get(mapped.start + i));
+        } else if (bits instanceof int[]) {
+            for (int word : (int[]) bits)
+                putWord(word);
+        } else if (bits instanceof byte[]) {
+            byte[] bytes = (byte[]) bits;
+            for (int i = 0; i < bytes.length; i += 4) {
+                int word = 0;
+                for (int j = 0; j < 4; j++)
+                    word = (word << 8) | (i + j < bytes.length ? bytes[i + j] & 0xFF : 0);
+                putWord(word);
+            }
+        }
+    }
+
+    /**
+     * @return the bits of obj, or where they are mapped from when they are still
+     * in the words of the image it was loaded from, which are written as they are
+     */
+    private static Object bitsOf(SqueakObject obj) {
+        return obj instanceof SqueakBits ? ((SqueakBits) obj).bits : obj.getBits();
+    }
+
+    int oopOf(Object obj) throws IOException {
+        if (obj == null)
+            obj = nilObj; //as in slots above the stack pointer of recycled contexts
+        int oop = obj instanceof SqueakObject ? oops.get((SqueakObject) obj) : 0;
+        if (oop == 0)
+            throw new IOException("cannot write a pointer to " + obj);
+        return oop;
+    }
+
+    void putWord(int word) throws IOException {
+        if (buffer.remaining() < 4)
+            flush();
+        buffer.putInt(word);
+    }
+
+    void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+}
@@ -0,0 +1,17 @@
+package JSqueak;
+
+/**
+ * Superclass of the classes JitCompiler generates for hot CompiledMethods.
+ * <p>
+ * It is public, as are the JitRuntime helpers the generated code calls, because
+ * every generated class lives in its own class loader (see JitCompiler).
+ */
+public abstract class JitCode {
+
+    /**
+     * Execute the method from vm.pc, which is the first byte of an instruction,
+     * until a send, return or anything else the compiled code cannot follow.
+     * On exit vm.pc is left on the last byte executed, as the interpreter expects.
+     */
+    public abstract void run(SqueakVM vm);
+}
@@ -0,0 +1,737 @@
+package JSqueak;
+
+import JSqueak.utils.SqueakLogger;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Translates hot CompiledMethods into JVM classes (see SqueakConfig.JIT).
+ * <p>
+ * The generated run() method has the control flow of the Squeak method: a
+ * tableswitch on vm.pc to every instruction start, and JVM branches for the
+ * jumps.  It keeps the stack pointer, the stack and the temporaries in locals,
+ * so that pushes, stores, pops and conditional jumps on Booleans are JVM
+ * bytecodes, and the blockCopy: that starts every block makes the BlockContext
+ * in place.  Everything else is a call into JitRuntime, with the stack pointer
+ * written back before and the locals reloaded after.  Sends leave the compiled
+ * code unless they were answered by a primitive in the same context, so the
+ * interpreter still does all activations and returns.
+ * <p>
+ * The class file is written out by hand in version 49 format, which the JVM
+ * verifies without stack map frames.  Each class gets its own loader so that it
+ * can be collected along with its method.  If anything goes wrong the method
+ * simply stays interpreted.
+ */
+class JitCompiler {
+
+    /** HotSpot does not compile JVM methods larger than this (DontCompileHugeMethods) */
+    private static final int MAX_CODE_SIZE = 8000;
+
+    private static final String RUNTIME = "JSqueak/JitRuntime";
+
+    // Locals of run(): 0 is this, 1 the SqueakVM, 2 a scratch int, then the registers
+    private static final int SP = 3;
+    private static final int STACK = 4;
+    private static final int TEMPS = 5;
+    private static final String VM_ARG = "(LJSqueak/SqueakVM;";
+
+    /** JitRuntime helpers for bytecodes 176..191 other than the comparisons */
+    private static final String[] ARITHMETIC_HELPERS = {
+            "add", "subtract", null, null, null, null, null, null,
+            "multiply", "divide", "mod", "makePoint", null, "div", "bitAnd", "bitOr"};
+
+    private static int compiledCount;
+
+    /**
+     * Compile aMethod and install the result in its DecodedMethod.
+     * Answers false if the method cannot be compiled.
+     */
+    static boolean compile(SqueakObject aMethod, DecodedMethod decoded) {
+        String className = "JSqueak.jit.CompiledMethod" + (++compiledCount);
+        try {
+            byte[] classBytes = new JitCompiler(DecodedMethod.decodeAll(decoded.bytes)).generate(className.replace('.', '/'));
+            if (classBytes == null)
+                return false;
+            Class<?> compiledClass = new JitClassLoader().define(className, classBytes);
+            decoded.jitCode = (JitCode) compiledClass.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            SqueakLogger.log_E("JIT failed for " + className + ": " + e);
+            return false;
+        }
+        int[] entries = new int[decoded.code.length];
+        Arrays.fill(entries, DecodedMethod.OP_COMPILED);
+        decoded.jitEntries = entries;
+        return true;
+    }
+
+    private static final class JitClassLoader extends ClassLoader {
+        JitClassLoader() {
+            super(JitCode.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classBytes) {
+            return defineClass(name, classBytes, 0, classBytes.length);
+        }
+    }
+
+    private static final class Label {
+        int position = -1;
+        List<int[]> fixups = new ArrayList<>(); // {offset field position, instruction position, field size}
+    }
+
+    private final int[] insns;
+    private final Label[] instructionLabels;
+    private final Label exit = new Label();
+    private final Label deoptimizeAtEntry = new Label();
+    private final Map<Integer, Label> deoptimizationStubs = new HashMap<>();
+    private final List<Label> localLabels = new ArrayList<>();
+
+    private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream constantPool = new ByteArrayOutputStream();
+    private final Map<String, Integer> constants = new HashMap<>();
+    private int constantCount = 1;
+
+    private JitCompiler(int[] insns) {
+        this.insns = insns;
+        instructionLabels = new Label[insns.length];
+    }
+
+    private static int lengthOf(int insn) {
+        if ((insn & 0xFF) == DecodedMethod.OP_DOUBLE_EXTENDED)
+            return 3;
+        return 1 + ((insn >>> 8) & 3);
+    }
+
+    private byte[] generate(String className) {
+        //Find the instruction starts by decoding linearly from the beginning
+        for (int pc = 0; pc < insns.length; pc += lengthOf(insns[pc]))
+            instructionLabels[pc] = new Label();
+        if (insns.length > Short.MAX_VALUE)
+            return null;
+
+        //Dispatch on the entry pc
+        loadRegisters();
+        aload1();
+        invokeRuntime("entryPc", ")I");
+        int switchPosition = code.size();
+        code.write(0xAA); //tableswitch
+        while (code.size() % 4 != 0)
+            code.write(0);
+        wideBranch(deoptimizeAtEntry, switchPosition);
+        u4(code, 0);
+        u4(code, insns.length - 1);
+        for (int pc = 0; pc < insns.length; pc++)
+            wideBranch(instructionLabels[pc] != null ? instructionLabels[pc] : deoptimizeAtEntry, switchPosition);
+
+        for (int pc = 0; pc < insns.length; pc += lengthOf(insns[pc])) {
+            place(instructionLabels[pc]);
+            generateInstruction(pc);
+            if (code.size() > MAX_CODE_SIZE)
+                return null;
+        }
+        //Running off the end fails in the interpreter as it would have anyway
+        deoptimizeAt(insns.length);
+
+        place(deoptimizeAtEntry);
+        aload1();
+        aload1();
+        invokeRuntime("entryPc", ")I");
+        invokeRuntime("deoptimize", "I)V");
+        code.write(0xB1); //return
+        for (Map.Entry<Integer, Label> stub : deoptimizationStubs.entrySet()) {
+            place(stub.getValue());
+            deoptimizeAt(stub.getKey());
+        }
+        place(exit);
+        code.write(0xB1); //return
+        if (code.size() > MAX_CODE_SIZE)
+            return null;
+        return classFile(className);
+    }
+
+    private void generateInstruction(int pc) {
+        int insn = insns[pc];
+        int lastPc = pc + lengthOf(insn) - 1;
+        int a = (insn >>> 10) & 0x3FF;
+        int b = insn >> 20;
+        switch (insn & 0xFF) {
+            case DecodedMethod.OP_PUSH_RCVR_VAR:
+                beginPush();
+                receiverPointers();
+                pushInt(a);
+                code.write(0x32); //aaload
+                code.write(0x53); //aastore
+                break;
+            case DecodedMethod.OP_PUSH_TEMP:
+                beginPush();
+                temporary(a);
+                code.write(0x53); //aastore
+                break;
+            case DecodedMethod.OP_PUSH_LIT:
+                beginPush();
+                literal(a);
+                code.write(0x53); //aastore
+                break;
+            case DecodedMethod.OP_PUSH_LIT_VAR:
+                beginPush();
+                literal(a);
+                pointersOf();
+                pushInt(Squeak.Assn_value);
+                code.write(0x32); //aaload
+                code.write(0x53); //aastore
+                break;
+            case DecodedMethod.OP_STORE_POP_RCVR_VAR:
+            case DecodedMethod.OP_STORE_RCVR_VAR:
+                receiverPointers();
+                pushInt(a);
+                store((insn & 0xFF) == DecodedMethod.OP_STORE_POP_RCVR_VAR);
+                break;
+            case DecodedMethod.OP_STORE_POP_TEMP:
+            case DecodedMethod.OP_STORE_TEMP:
+                aload(TEMPS);
+                pushInt(a);
+                store((insn & 0xFF) == DecodedMethod.OP_STORE_POP_TEMP);
+                break;
+            case DecodedMethod.OP_STORE_POP_LIT_VAR:
+            case DecodedMethod.OP_STORE_LIT_VAR:
+                literal(a);
+                pointersOf();
+                pushInt(Squeak.Assn_value);
+                store((insn & 0xFF) == DecodedMethod.OP_STORE_POP_LIT_VAR);
+                break;
+            case DecodedMethod.OP_PUSH_RCVR:
+                beginPush();
+                temporary(Squeak.Context_receiver);
+                code.write(0x53); //aastore
+                break;
+            case DecodedMethod.OP_PUSH_TRUE:
+                pushSpecialObject("trueObject");
+                break;
+            case DecodedMethod.OP_PUSH_FALSE:
+                pushSpecialObject("falseObject");
+                break;
+            case DecodedMethod.OP_PUSH_NIL:
+                pushSpecialObject("nilObject");
+                break;
+            case DecodedMethod.OP_PUSH_INT:
+                beginPush();
+                pushInt(b);
+                invokeStatic("JSqueak/SqueakVM", "smallFromInt", "(I)Ljava/lang/Integer;");
+                code.write(0x53); //aastore
+                break;
+            case DecodedMethod.OP_RETURN_RCVR:
+                callAndExit("returnReceiver");
+                break;
+            case DecodedMethod.OP_RETURN_TRUE:
+                callAndExit("returnTrue");
+                break;
+            case DecodedMethod.OP_RETURN_FALSE:
+                callAndExit("returnFalse");
+                break;
+            case DecodedMethod.OP_RETURN_NIL:
+                callAndExit("returnNil");
+                break;
+            case DecodedMethod.OP_RETURN_TOP:
+                callAndExit("returnTop");
+                break;
+            case DecodedMethod.OP_BLOCK_RETURN:
+                callAndExit("blockReturn");
+                break;
+            case DecodedMethod.OP_POP:
+                iinc(SP, -1);
+                break;
+            case DecodedMethod.OP_DUP:
+                aload(STACK);
+                iload(SP);
+                code.write(0x04); //iconst_1
+                code.write(0x60); //iadd
+                top();
+                code.write(0x53); //aastore
+                iinc(SP, 1);
+                break;
+            case DecodedMethod.OP_PUSH_CONTEXT:
+                if (isBlockCopy(pc)) {
+                    //[thisContext blockCopy: n] makes the BlockContext without pushing the context or sending
+                    beginPush();
+                    aload1();
+                    pushInt(pc + 2);
+                    pushInt(insns[pc + 1] >> 20);
+                    invokeRuntime("blockCopy", "II)LJSqueak/SqueakObject;");
+                    code.write(0x53); //aastore
+                    branch(0xA7, target(pc + 3)); //goto
+                    break;
+                }
+                storeSp();
+                aload1();
+                pushInt(pc);
+                invokeRuntime("pushThisContext", "I)V");
+                loadSp();
+                break;
+            case DecodedMethod.OP_SEND:
+                send("send", lastPc, a, b);
+                break;
+            case DecodedMethod.OP_SUPER_SEND:
+                send("superSend", lastPc, a, b);
+                break;
+            case DecodedMethod.OP_JUMP:
+                branch(0xA7, target(lastPc + 1 + b)); //goto
+                break;
+            case DecodedMethod.OP_JUMP_BACK:
+                storeSp();
+                aload1();
+                pushInt(lastPc + 1 + b);
+                invokeRuntime("jumpBack", "I)Z");
+                branch(0x99, exit); //ifeq
+                loadRegisters();
+                branch(0xA7, target(lastPc + 1 + b)); //goto
+                break;
+            case DecodedMethod.OP_JUMP_IF_TRUE:
+            case DecodedMethod.OP_JUMP_IF_FALSE:
+                jumpIf((insn & 0xFF) == DecodedMethod.OP_JUMP_IF_TRUE, lastPc, target(lastPc + 1 + b));
+                break;
+            case DecodedMethod.OP_LESS:
+            case DecodedMethod.OP_GREATER:
+            case DecodedMethod.OP_LESS_OR_EQUAL:
+            case DecodedMethod.OP_GREATER_OR_EQUAL:
+            case DecodedMethod.OP_EQUAL:
+            case DecodedMethod.OP_NOT_EQUAL:
+                int next = lastPc + 1;
+                if (next < insns.length && (insns[next] & 0xFF) == DecodedMethod.OP_JUMP_IF_FALSE) {
+                    //Compare and branch without pushing a Boolean
+                    int nextLastPc = next + lengthOf(insns[next]) - 1;
+                    storeSp();
+                    aload1();
+                    pushInt(lastPc);
+                    pushInt(176 + (insn & 0xFF) - DecodedMethod.OP_ADD);
+                    invokeRuntime("compareAndBranch", "II)I");
+                    code.write(0x3D); //istore_2
+                    code.write(0x1C); //iload_2
+                    branch(0x9B, exit); //iflt
+                    iinc(SP, -2); //only the operands were popped
+                    code.write(0x1C); //iload_2
+                    branch(0x9A, target(nextLastPc + 1)); //ifne
+                    branch(0xA7, target(nextLastPc + 1 + (insns[next] >> 20))); //goto
+                    break;
+                }
+                arithmetic(lastPc, 176 + (insn & 0xFF) - DecodedMethod.OP_ADD);
+                break;
+            case DecodedMethod.OP_ADD:
+            case DecodedMethod.OP_SUBTRACT:
+            case DecodedMethod.OP_MULTIPLY:
+            case DecodedMethod.OP_DIVIDE:
+            case DecodedMethod.OP_MOD:
+            case DecodedMethod.OP_MAKE_POINT:
+            case DecodedMethod.OP_BIT_SHIFT:
+            case DecodedMethod.OP_DIV:
+            case DecodedMethod.OP_BIT_AND:
+            case DecodedMethod.OP_BIT_OR:
+                arithmetic(lastPc, 176 + (insn & 0xFF) - DecodedMethod.OP_ADD);
+                break;
+            case DecodedMethod.OP_SPECIAL_SEND:
+                storeSp();
+                aload1();
+                pushInt(lastPc);
+                pushInt(a);
+                invokeRuntime("specialSend", "II)Z");
+                branch(0x99, exit); //ifeq
+                loadRegisters();
+                break;
+            case DecodedMethod.OP_DOUBLE_EXTENDED:
+                storeSp();
+                aload1();
+                pushInt(lastPc);
+                pushInt(a);
+                invokeRuntime("doubleExtended", "II)Z");
+                branch(0x99, exit); //ifeq
+                loadRegisters();
+                break;
+            default:
+                deoptimizeAt(pc);
+                break;
+        }
+    }
+
+    /**
+     * Whether pc starts [thisContext blockCopy: n], as the compiler writes every
+     * block: pushThisContext, push n (0..2), send blockCopy:.
+     */
+    private boolean isBlockCopy(int pc) {
+        return pc + 3 < insns.length
+                && (insns[pc + 1] & 0xFF) == DecodedMethod.OP_PUSH_INT && insns[pc + 1] >> 20 >= 0
+                && (insns[pc + 2] & 0xFF) == DecodedMethod.OP_SPECIAL_SEND && ((insns[pc + 2] >>> 10) & 0x3FF) == 8;
+    }
+
+    private Label target(int pc) {
+        if (pc >= 0 && pc < insns.length && instructionLabels[pc] != null)
+            return instructionLabels[pc];
+        Label stub = deoptimizationStubs.get(pc);
+        if (stub == null) {
+            stub = new Label();
+            deoptimizationStubs.put(pc, stub);
+        }
+        return stub;
+    }
+
+    // Code generation
+
+    /**
+     * Load the stack pointer, the stack (the active context) and the temporaries
+     * (the home context) into locals, as on entry and after anything that may
+     * have run Smalltalk code.
+     */
+    private void loadRegisters() {
+        loadSp();
+        aload1();
+        invokeRuntime("stack", ")[Ljava/lang/Object;");
+        astore(STACK);
+        aload1();
+        invokeRuntime("temporaries", ")[Ljava/lang/Object;");
+        astore(TEMPS);
+    }
+
+    private void loadSp() {
+        aload1();
+        invokeRuntime("sp", ")I");
+        code.write(0x36); //istore
+        code.write(SP);
+    }
+
+    /**
+     * Write the stack pointer back, before calling a helper that uses the stack.
+     */
+    private void storeSp() {
+        aload1();
+        iload(SP);
+        invokeRuntime("setSp", "I)V");
+    }
+
+    /**
+     * Start pushing: leave the stack and the incremented stack pointer for the aastore
+     * that follows the value.
+     */
+    private void beginPush() {
+        aload(STACK);
+        iinc(SP, 1);
+        iload(SP);
+    }
+
+    private void top() {
+        aload(STACK);
+        iload(SP);
+        code.write(0x32); //aaload
+    }
+
+    /**
+     * Store the top of stack into the array and index already pushed, popping it if pop.
+     */
+    private void store(boolean pop) {
+        top();
+        code.write(0x53); //aastore
+        if (pop)
+            iinc(SP, -1);
+    }
+
+    private void temporary(int index) {
+        aload(TEMPS);
+        pushInt(index);
+        code.write(0x32); //aaload
+    }
+
+    private void receiverPointers() {
+        temporary(Squeak.Context_receiver);
+        pointersOf();
+    }
+
+    private void pointersOf() {
+        invokeStatic(RUNTIME, "pointers", "(Ljava/lang/Object;)[Ljava/lang/Object;");
+    }
+
+    private void literal(int index) {
+        aload1();
+        pushInt(index);
+        invokeRuntime("literal", "I)Ljava/lang/Object;");
+    }
+
+    private void pushSpecialObject(String getter) {
+        beginPush();
+        aload1();
+        invokeRuntime(getter, ")LJSqueak/SqueakObject;");
+        code.write(0x53); //aastore
+    }
+
+    /**
+     * Pop a Boolean and jump on it, or send #mustBeBoolean from the interpreter.
+     */
+    private void jumpIf(boolean condition, int lastPc, Label target) {
+        Label notTaken = new Label();
+        Label notBoolean = new Label();
+        Label next = new Label();
+        top();
+        aload1();
+        invokeRuntime(condition ? "trueObject" : "falseObject", ")LJSqueak/SqueakObject;");
+        branch(0xA6, notTaken); //if_acmpne
+        iinc(SP, -1);
+        branch(0xA7, target); //goto
+        place(notTaken);
+        top();
+        aload1();
+        invokeRuntime(condition ? "falseObject" : "trueObject", ")LJSqueak/SqueakObject;");
+        branch(0xA6, notBoolean); //if_acmpne
+        iinc(SP, -1);
+        branch(0xA7, next); //goto
+        place(notBoolean);
+        storeSp();
+        aload1();
+        pushInt(lastPc);
+        invokeRuntime("mustBeBoolean", "I)V");
+        code.write(0xB1); //return
+        place(next);
+        localLabels.add(notTaken);
+        localLabels.add(notBoolean);
+        localLabels.add(next);
+    }
+
+    private void callAndExit(String helper) {
+        storeSp();
+        aload1();
+        invokeRuntime(helper, ")V");
+        code.write(0xB1); //return
+    }
+
+    private void send(String helper, int lastPc, int literalIndex, int argCount) {
+        storeSp();
+        aload1();
+        pushInt(lastPc);
+        pushInt(literalIndex);
+        pushInt(argCount);
+        invokeRuntime(helper, "III)Z");
+        branch(0x99, exit); //ifeq
+        loadRegisters();
+    }
+
+    private void arithmetic(int lastPc, int bytecode) {
+        storeSp();
+        aload1();
+        pushInt(lastPc);
+        if (bytecode >= 178 && bytecode <= 183) {
+            pushInt(bytecode);
+            invokeRuntime("compare", "II)Z");
+        } else if (ARITHMETIC_HELPERS[bytecode - 176] != null) {
+            invokeRuntime(ARITHMETIC_HELPERS[bytecode - 176], "I)Z");
+        } else {
+            pushInt(bytecode & 0xF);
+            invokeRuntime("sendSpecial", "II)Z");
+        }
+        branch(0x99, exit); //ifeq
+        loadRegisters(); //it may have sent, and been answered by a primitive
+    }
+
+    private void deoptimizeAt(int pc) {
+        storeSp();
+        aload1();
+        pushInt(pc);
+        invokeRuntime("deoptimize", "I)V");
+        code.write(0xB1); //return
+    }
+
+    private void aload1() {
+        code.write(0x2B);
+    }
+
+    private void aload(int local) {
+        code.write(0x19);
+        code.write(local);
+    }
+
+    private void astore(int local) {
+        code.write(0x3A);
+        code.write(local);
+    }
+
+    private void iload(int local) {
+        code.write(0x15);
+        code.write(local);
+    }
+
+    private void iinc(int local, int delta) {
+        code.write(0x84);
+        code.write(local);
+        code.write(delta);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            code.write(0x03 + value); //iconst_<value>
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            code.write(0x10); //bipush
+            code.write(value);
+        } else {
+            code.write(0x11); //sipush
+            u2(code, value);
+        }
+    }
+
+    private void invokeRuntime(String name, String descriptorTail) {
+        invokeStatic(RUNTIME, name, VM_ARG + descriptorTail);
+    }
+
+    private void invokeStatic(String owner, String name, String descriptor) {
+        code.write(0xB8); //invokestatic
+        u2(code, methodRef(owner, name, descriptor));
+    }
+
+    private void branch(int opcode, Label label) {
+        int position = code.size();
+        code.write(opcode);
+        label.fixups.add(new int[]{code.size(), position, 2});
+        u2(code, 0);
+    }
+
+    private void wideBranch(Label label, int instructionPosition) {
+        label.fixups.add(new int[]{code.size(), instructionPosition, 4});
+        u4(code, 0);
+    }
+
+    private void place(Label label) {
+        label.position = code.size();
+    }
+
+    private byte[] resolvedCode() {
+        byte[] bytes = code.toByteArray();
+        List<Label> labels = new ArrayList<>(Arrays.asList(instructionLabels));
+        labels.addAll(deoptimizationStubs.values());
+        labels.addAll(localLabels);
+        labels.add(exit);
+        labels.add(deoptimizeAtEntry);
+        for (Label label : labels) {
+            if (label == null)
+                continue;
+            for (int[] fixup : label.fixups) {
+                int offset = label.position - fixup[1];
+                if (fixup[2] == 4) {
+                    bytes[fixup[0]] = (byte) (offset >> 24);
+                    bytes[fixup[0] + 1] = (byte) (offset >> 16);
+                }
+                bytes[fixup[0] + fixup[2] - 2] = (byte) (offset >> 8);
+                bytes[fixup[0] + fixup[2] - 1] = (byte) offset;
+            }
+        }
+        return bytes;
+    }
+
+    // Class file
+
+    private byte[] classFile(String className) {
+        byte[] runCode = resolvedCode();
+        int thisClass = classRef(className);
+        int superClass = classRef("JSqueak/JitCode");
+        int superInit = methodRef("JSqueak/JitCode", "<init>", "()V");
+        int initName = utf8("<init>");
+        int initType = utf8("()V");
+        int runName = utf8("run");
+        int runType = utf8("(LJSqueak/SqueakVM;)V");
+        int codeName = utf8("Code");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        u4(out, 0xCAFEBABE);
+        u2(out, 0);
+        u2(out, 49);
+        u2(out, constantCount);
+        out.write(constantPool.toByteArray(), 0, constantPool.size());
+        u2(out, 0x0031); //public final super
+        u2(out, thisClass);
+        u2(out, superClass);
+        u2(out, 0); //interfaces
+        u2(out, 0); //fields
+        u2(out, 2); //methods
+
+        u2(out, 0x0001);
+        u2(out, initName);
+        u2(out, initType);
+        u2(out, 1);
+        byte[] initCode = {0x2A, (byte) 0xB7, (byte) (superInit >> 8), (byte) superInit, (byte) 0xB1};
+        codeAttribute(out, codeName, 1, 1, initCode);
+
+        u2(out, 0x0001);
+        u2(out, runName);
+        u2(out, runType);
+        u2(out, 1);
+        codeAttribute(out, codeName, 5, TEMPS + 1, runCode);
+
+        u2(out, 0); //class attributes
+        return out.toByteArray();
+    }
+
+    private static void codeAttribute(ByteArrayOutputStream out, int codeName, int maxStack, int maxLocals, byte[] bytes) {
+        u2(out, codeName);
+        u4(out, 12 + bytes.length);
+        u2(out, maxStack);
+        u2(out, maxLocals);
+        u4(out, bytes.length);
+        out.write(bytes, 0, bytes.length);
+        u2(out, 0); //exception table
+        u2(out, 0); //attributes
+    }
+
+    private int utf8(String string) {
+        Integer index = constants.get("U" + string);
+        if (index == null) {
+            constantPool.write(1);
+            u2(constantPool, string.length()); //names here are all ASCII
+            for (int i = 0; i < string.length(); i++)
+                constantPool.write(string.charAt(i));
+            index = newConstant("U" + string);
+        }
+        return index;
+    }
+
+    private int classRef(String internalName) {
+        Integer index = constants.get("C" + internalName);
+        if (index == null) {
+            int name = utf8(internalName);
+            constantPool.write(7);
+            u2(constantPool, name);
+            index = newConstant("C" + internalName);
+        }
+        return index;
+    }
+
+    private int methodRef(String owner, String name, String descriptor) {
+        String key = "M" + owner + "." + name + descriptor;
+        Integer index = constants.get(key);
+        if (index == null) {
+            int ownerClass = classRef(owner);
+            int nameIndex = utf8(name);
+            int typeIndex = utf8(descriptor);
+            constantPool.write(12); //NameAndType
+            u2(constantPool, nameIndex);
+            u2(constantPool, typeIndex);
+            int nameAndType = newConstant("N" + name + descriptor);
+            constantPool.write(10); //Methodref
+            u2(constantPool, ownerClass);
+            u2(constantPool, nameAndType);
+            index = newConstant(key);
+        }
+        return index;
+    }
+
+    private int newConstant(String key) {
+        constants.put(key, constantCount);
+        return constantCount++;
+    }
+
+    private static void u2(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    private static void u4(ByteArrayOutputStream out, int value) {
+        u2(out, value >>> 16);
+        u2(out, value);
+    }
+}
@@ -0,0 +1,292 @@
+package JSqueak;
+
+/**
+ * The operations called from JIT-compiled methods (see JitCompiler).
+ * <p>
+ * Each helper does what the corresponding case of SqueakVM.runDecoded() does,
+ * on vm.sp as the compiled code leaves it before each call.  Helpers that may send, or otherwise change the active context or the pc,
+ * take the pc of the last byte of their instruction (which the interpreter
+ * would have at that point) and answer whether the compiled code can carry on
+ * with the next instruction, i.e. whether the same context is still active
+ * at the same pc.  If not, the compiled code returns to the interpreter.
+ */
+public final class JitRuntime {
+
+    private JitRuntime() {
+    }
+
+    public static int entryPc(SqueakVM vm) {
+        return vm.pc;
+    }
+
+    /**
+     * Leave the compiled code and interpret this activation from pc on.
+     */
+    public static void deoptimize(SqueakVM vm, int pc) {
+        vm.pc = pc - 1;
+        vm.methodCode = vm.methodDecoded.code;
+    }
+
+    // Registers, which the compiled code keeps in locals (see JitCompiler.loadRegisters)
+
+    public static int sp(SqueakVM vm) {
+        return vm.sp;
+    }
+
+    public static void setSp(SqueakVM vm, int sp) {
+        vm.sp = sp;
+    }
+
+    public static Object[] stack(SqueakVM vm) {
+        return vm.activeContext.pointers;
+    }
+
+    public static Object[] temporaries(SqueakVM vm) {
+        return vm.homeContext.pointers;
+    }
+
+    // Operands of the pushes and stores, which the compiled code does itself
+
+    public static Object[] pointers(Object obj) {
+        return ((SqueakObject) obj).pointers;
+    }
+
+    public static Object literal(SqueakVM vm, int index) {
+        return vm.method.methodGetLiteral(index);
+    }
+
+    public static SqueakObject trueObject(SqueakVM vm) {
+        return vm.trueObj;
+    }
+
+    public static SqueakObject falseObject(SqueakVM vm) {
+        return vm.falseObj;
+    }
+
+    public static SqueakObject nilObject(SqueakVM vm) {
+        return vm.nilObj;
+    }
+
+    // Contexts
+
+    public static void pushThisContext(SqueakVM vm, int pc) {
+        vm.pc = pc;
+        vm.pushThisContext();
+    }
+
+    /**
+     * [thisContext blockCopy: argCount] with the send at pc: answer the new
+     * BlockContext, marking the home context escaped as pushThisContext() would.
+     */
+    public static SqueakObject blockCopy(SqueakVM vm, int pc, int argCount) {
+        SqueakVM.markEscaped(vm.homeContext);
+        return vm.primHandler.newBlockContext(vm.homeContext, SqueakVM.smallFromInt(argCount), pc);
+    }
+
+    // Returns (the compiled code always exits after these)
+
+    public static void returnReceiver(SqueakVM vm) {
+        vm.doReturn(vm.receiver, vm.homeContext.getPointerNI(Squeak.Context_sender));
+    }
+
+    public static void returnTrue(SqueakVM vm) {
+        vm.doReturn(vm.trueObj, vm.homeContext.getPointerNI(Squeak.Context_sender));
+    }
+
+    public static void returnFalse(SqueakVM vm) {
+        vm.doReturn(vm.falseObj, vm.homeContext.getPointerNI(Squeak.Context_sender));
+    }
+
+    public static void returnNil(SqueakVM vm) {
+        vm.doReturn(vm.nilObj, vm.homeContext.getPointerNI(Squeak.Context_sender));
+    }
+
+    public static void returnTop(SqueakVM vm) {
+        vm.doReturn(vm.pop(), vm.homeContext.getPointerNI(Squeak.Context_sender));
+    }
+
+    public static void blockReturn(SqueakVM vm) {
+        vm.doReturn(vm.pop(), vm.activeContext.getPointerNI(Squeak.BlockContext_caller));
+    }
+
+    // Sends and arithmetic
+
+    public static boolean send(SqueakVM vm, int pc, int literalIndex, int argCount) {
+        vm.pc = pc;
+        SqueakObject context = vm.activeContext;
+        vm.send(vm.method.methodGetSelector(literalIndex), argCount, false);
+        return vm.activeContext == context && vm.pc == pc;
+    }
+
+    public static boolean superSend(SqueakVM vm, int pc, int literalIndex, int argCount) {
+        vm.pc = pc;
+        SqueakObject context = vm.activeContext;
+        vm.send(vm.method.methodGetSelector(literalIndex), argCount, true);
+        return vm.activeContext == context && vm.pc == pc;
+    }
+
+    public static boolean specialSend(SqueakVM vm, int pc, int lobits) {
+        vm.pc = pc;
+        SqueakObject context = vm.activeContext;
+        if (!vm.primHandler.quickSendOther(vm.receiver, lobits))
+            vm.sendSpecial(lobits + 16);
+        return vm.activeContext == context && vm.pc == pc;
+    }
+
+    /**
+     * The arithmetic and comparison bytecodes 176..191, one helper each so that
+     * the JVM can inline them.  A comparison may answer false just because
+     * pushBoolAndPeek() consumed the following jump.
+     */
+    public static boolean add(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(vm.stackInteger(1) + vm.stackInteger(0)))
+            return true;
+        return sendSpecial(vm, pc, 0);
+    }
+
+    public static boolean subtract(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(vm.stackInteger(1) - vm.stackInteger(0)))
+            return true;
+        return sendSpecial(vm, pc, 1);
+    }
+
+    public static boolean multiply(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(SqueakVM.safeMultiply(vm.stackInteger(1), vm.stackInteger(0))))
+            return true;
+        return sendSpecial(vm, pc, 8);
+    }
+
+    public static boolean divide(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(SqueakVM.quickDivide(vm.stackInteger(1), vm.stackInteger(0))))
+            return true;
+        return sendSpecial(vm, pc, 9);
+    }
+
+    public static boolean mod(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(SqueakVM.mod(vm.stackInteger(1), vm.stackInteger(0))))
+            return true;
+        return sendSpecial(vm, pc, 10);
+    }
+
+    public static boolean makePoint(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.primHandler.primitiveMakePoint())
+            return true;
+        return sendSpecial(vm, pc, 11);
+    }
+
+    public static boolean div(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(SqueakVM.div(vm.stackInteger(1), vm.stackInteger(0))))
+            return true;
+        return sendSpecial(vm, pc, 13);
+    }
+
+    public static boolean bitAnd(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(vm.stackInteger(1) & vm.stackInteger(0)))
+            return true;
+        return sendSpecial(vm, pc, 14);
+    }
+
+    public static boolean bitOr(SqueakVM vm, int pc) {
+        vm.success = true;
+        if (vm.pop2AndPushIntResult(vm.stackInteger(1) | vm.stackInteger(0)))
+            return true;
+        return sendSpecial(vm, pc, 15);
+    }
+
+    /**
+     * A comparison (178..183) whose result is pushed rather than branched on.
+     */
+    public static boolean compare(SqueakVM vm, int pc, int bytecode) {
+        vm.pc = pc;
+        int result = compareAndBranch(vm, pc, bytecode);
+        if (result >= 0)
+            vm.push(result > 0 ? vm.trueObj : vm.falseObj);
+        return result >= 0;
+    }
+
+    /**
+     * Send one of the arithmetic selectors, e.g. for bitShift: (188) or when the
+     * operands are not both SmallIntegers.
+     */
+    public static boolean sendSpecial(SqueakVM vm, int pc, int lobits) {
+        vm.pc = pc;
+        SqueakObject context = vm.activeContext;
+        vm.sendSpecial(lobits);
+        return vm.activeContext == context && vm.pc == pc;
+    }
+
+    /**
+     * A SmallInteger comparison (178..183) followed by a jump on false.
+     * Answers 1 or 0 for the result of the comparison, with both operands popped,
+     * or -1 if the comparison had to be sent.
+     */
+    public static int compareAndBranch(SqueakVM vm, int pc, int bytecode) {
+        vm.success = true;
+        int rcvr = vm.stackInteger(1);
+        int arg = vm.stackInteger(0);
+        if (!vm.success) {
+            vm.pc = pc;
+            vm.sendSpecial(bytecode & 0xF);
+            return -1;
+        }
+        boolean result;
+        switch (bytecode) {
+            case 178:
+                result = rcvr < arg;
+                break;
+            case 179:
+                result = rcvr > arg;
+                break;
+            case 180:
+                result = rcvr <= arg;
+                break;
+            case 181:
+                result = rcvr >= arg;
+                break;
+            case 182:
+                result = rcvr == arg;
+                break;
+            default:
+                result = rcvr != arg;
+                break;
+        }
+        vm.popN(2);
+        return result ? 1 : 0;
+    }
+
+    // Jumps
+
+    /**
+     * Send #mustBeBoolean to the top of stack, which a conditional jump found
+     * to be neither true nor false.
+     */
+    public static void mustBeBoolean(SqueakVM vm, int pc) {
+        vm.pc = pc;
+        vm.send((SqueakObject) vm.specialObjects[Squeak.splOb_SelectorMustBeBoolean], 1, false, false);
+    }
+
+    /**
+     * A backward jump: check for interrupts, which may switch processes.
+     */
+    public static boolean jumpBack(SqueakVM vm, int targetPc) {
+        vm.pc = targetPc - 1;
+        SqueakObject context = vm.activeContext;
+        vm.checkForInterrupts();
+        return vm.activeContext == context;
+    }
+
+    public static boolean doubleExtended(SqueakVM vm, int pc, int secondByte) {
+        vm.pc = pc - 1;  // doubleExtendedDoAnything fetches the third byte itself
+        SqueakObject context = vm.activeContext;
+        vm.doubleExtendedDoAnything(secondByte);
+        return vm.activeContext == context && vm.pc == pc;
+    }
+}
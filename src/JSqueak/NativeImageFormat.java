@@ -0,0 +1,264 @@
+package JSqueak;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * JSqueak's own snapshot format, which holds objects as SqueakObject does, so
+ * that an image loads with a few bulk reads and no oop lookups.  Files in this
+ * format are named *.jsq, before any suffix of their codec (see ImageCodec); see
+ * ImageConverter to convert from and to the standard format.
+ * <p>
+ * A file is big-endian, and holds a header of ints:
+ * <pre>
+ * MAGIC, VERSION, object count, index of the special objects array, lastHash, savedWindowSize,
+ * total pointers, total words, total bytes, total floats
+ * </pre>
+ * then a section per kind of data, each in object order:
+ * <pre>
+ * int[count]    index of the object's class
+ * int[count]    kind &lt;&lt; 24 | format &lt;&lt; 16 | hash
+ * int[count]    number of pointers
+ * int[count]    number of words or bytes
+ * int[]         pointers: SmallIntegers as value &lt;&lt; 1 | 1, objects as index &lt;&lt; 1
+ * int[]         words of word objects
+ * long[]        Floats as raw bits
+ * byte[]        bytes of byte objects and methods
+ * </pre>
+ * Readers refuse versions newer than theirs; a change to the layout must bump
+ * VERSION, and keep reading the older ones.
+ */
+class NativeImageFormat {
+    static final int MAGIC = 0x4A535149; //"JSQI"
+    static final int VERSION = 1;
+    static final String EXTENSION = ".jsq";
+    private static final int HEADER_INTS = 10;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final int KIND_POINTERS = 0;
+    private static final int KIND_WORDS = 1;
+    private static final int KIND_BYTES = 2;
+    private static final int KIND_METHOD = 3;
+    private static final int KIND_FLOAT = 4;
+
+    /**
+     * What read() answers: the objects, in order, not yet registered with an image.
+     */
+    static final class Contents {
+        SqueakObject[] objects;
+        SqueakObject specialObjectsArray;
+        int lastHash;
+        int savedWindowSize;
+    }
+
+    static boolean isNativeName(File fn) {
+        return ImageCodec.imageName(fn).endsWith(EXTENSION);
+    }
+
+    static boolean isNative(ByteBuffer start) {
+        return start.remaining() >= 4 && start.getInt(start.position()) == MAGIC;
+    }
+
+    private static int kindOf(SqueakObject obj) {
+        if (obj instanceof SqueakFloat)
+            return KIND_FLOAT;
+        if (obj instanceof SqueakMethod)
+            return KIND_METHOD;
+        Object bits = obj.getBits();
+        if (bits instanceof byte[])
+            return KIND_BYTES;
+        if (bits instanceof int[])
+            return KIND_WORDS;
+        return KIND_POINTERS;
+    }
+
+    /**
+     * Write objects, which must include every object any of them points to, to out.
+     * As for ImageWriter, states holds what to write for each object.
+     */
+    static void write(WritableByteChannel out, SqueakObject[] objects, SqueakObject[] states,
+                      SqueakObject specialObjectsArray, int lastHash, int savedWindowSize) throws IOException {
+        int count = objects.length;
+        ObjectIntMap indices = new ObjectIntMap(count);
+        for (int i = 0; i < count; i++)
+            indices.put(objects[i], i + 1);
+        int nilIndex = indices.get((SqueakObject) specialObjectsArray.getPointer(Squeak.splOb_NilObject)) - 1;
+        long pointers = 0, words = 0, bytes = 0, floats = 0;
+        for (SqueakObject obj : states) {
+            if (obj.pointers != null)
+                pointers += obj.pointers.length;
+            switch (kindOf(obj)) {
+                case KIND_WORDS:
+                    words += ((int[]) obj.getBits()).length;
+                    break;
+                case KIND_BYTES:
+                case KIND_METHOD:
+                    bytes += ((byte[]) obj.getBits()).length;
+                    break;
+                case KIND_FLOAT:
+                    floats++;
+                    break;
+            }
+        }
+        if (pointers > Integer.MAX_VALUE || words > Integer.MAX_VALUE || bytes > Integer.MAX_VALUE)
+            throw new IOException("image too large for native format version " + VERSION);
+
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int[] header = {MAGIC, VERSION, count, indices.get(specialObjectsArray) - 1, lastHash, savedWindowSize,
+                (int) pointers, (int) words, (int) bytes, (int) floats};
+        for (int value : header)
+            putInt(out, buffer, value);
+        for (SqueakObject obj : states)
+            putInt(out, buffer, indexOf(indices, obj.sqClass));
+        for (SqueakObject obj : states)
+            putInt(out, buffer, kindOf(obj) << 24 | (obj.format & 0xFF) << 16 | (obj.hash & 0xFFFF));
+        for (SqueakObject obj : states)
+            putInt(out, buffer, obj.pointers == null ? 0 : obj.pointers.length);
+        for (SqueakObject obj : states) {
+            Object bits = kindOf(obj) == KIND_FLOAT ? null : obj.getBits();
+            putInt(out, buffer, bits instanceof byte[] ? ((byte[]) bits).length
+                    : bits instanceof int[] ? ((int[]) bits).length : 0);
+        }
+        for (SqueakObject obj : states) {
+            if (obj.pointers == null)
+                continue;
+            for (Object ptr : obj.pointers) {
+                int ref;
+                if (ptr instanceof Integer)
+                    ref = ((Integer) ptr << 1) | 1;
+                else
+                    ref = (ptr == null ? nilIndex : indexOf(indices, ptr)) << 1;
+                putInt(out, buffer, ref);
+            }
+        }
+        for (SqueakObject obj : states) {
+            if (kindOf(obj) == KIND_WORDS)
+                for (int word : (int[]) obj.getBits())
+                    putInt(out, buffer, word);
+        }
+        for (SqueakObject obj : states) {
+            if (kindOf(obj) == KIND_FLOAT) {
+                long floatBits = Double.doubleToRawLongBits(obj.getFloatBits());
+                putInt(out, buffer, (int) (floatBits >>> 32));
+                putInt(out, buffer, (int) floatBits);
+            }
+        }
+        for (SqueakObject obj : states) {
+            int kind = kindOf(obj);
+            if (kind == KIND_BYTES || kind == KIND_METHOD) {
+                byte[] objBytes = (byte[]) obj.getBits();
+                for (int i = 0; i < objBytes.length; ) {
+                    if (!buffer.hasRemaining())
+                        flush(out, buffer);
+                    int n = Math.min(buffer.remaining(), objBytes.length - i);
+                    buffer.put(objBytes, i, n);
+                    i += n;
+                }
+            }
+        }
+        flush(out, buffer);
+    }
+
+    private static int indexOf(ObjectIntMap indices, Object obj) throws IOException {
+        int index = obj instanceof SqueakObject ? indices.get((SqueakObject) obj) : 0;
+        if (index == 0)
+            throw new IOException("cannot write a pointer to " + obj);
+        return index - 1;
+    }
+
+    private static void putInt(WritableByteChannel out, ByteBuffer buffer, int value) throws IOException {
+        if (buffer.remaining() < 4)
+            flush(out, buffer);
+        buffer.putInt(value);
+    }
+
+    private static void flush(WritableByteChannel out, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            out.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Read the objects of an image in this format from in, which is at its start.
+     */
+    static Contents read(ByteBuffer in, ImageLoadMetrics metrics) throws IOException {
+        long phaseStart = System.nanoTime();
+        int[] header = ints(in, HEADER_INTS);
+        if (header[0] != MAGIC)
+            throw new IOException("not a native image");
+        if (header[1] > VERSION)
+            throw new IOException("native image version " + header[1] + " is newer than this VM's " + VERSION);
+        int count = header[2];
+        int[] classes = ints(in, count);
+        int[] headers = ints(in, count);
+        int[] pointerCounts = ints(in, count);
+        int[] bitsCounts = ints(in, count);
+        int[] pointers = ints(in, header[6]);
+        int[] words = ints(in, header[7]);
+        int[] floatWords = ints(in, 2 * header[9]);
+        byte[] bytes = new byte[header[8]];
+        in.get(bytes);
+        metrics.bytes = in.position();
+        metrics.readNanos = System.nanoTime() - phaseStart;
+        phaseStart = System.nanoTime();
+
+        SqueakObject[] objects = new SqueakObject[count];
+        for (int i = 0; i < count; i++) {
+            int kind = headers[i] >>> 24;
+            int format = (headers[i] >> 16) & 0xFF;
+            objects[i] = SqueakObject.fromImage(format, headers[i] & 0xFFFF, kind == KIND_FLOAT);
+        }
+        metrics.createNanos = System.nanoTime() - phaseStart;
+        phaseStart = System.nanoTime();
+
+        int pointer = 0, word = 0, floatWord = 0, aByte = 0;
+        for (int i = 0; i < count; i++) {
+            SqueakObject obj = objects[i];
+            obj.sqClass = objects[classes[i]];
+            int nPointers = pointerCounts[i];
+            if (nPointers > 0 || headers[i] >>> 24 == KIND_POINTERS) {
+                Object[] objPointers = new Object[nPointers];
+                for (int j = 0; j < nPointers; j++) {
+                    int ref = pointers[pointer++];
+                    objPointers[j] = (ref & 1) == 1 ? SqueakVM.smallFromInt(ref >> 1) : objects[ref >>> 1];
+                }
+                obj.pointers = objPointers;
+            }
+            switch (headers[i] >>> 24) {
+                case KIND_WORDS:
+                    ((SqueakBits) obj).bits = Arrays.copyOfRange(words, word, word + bitsCounts[i]);
+                    word += bitsCounts[i];
+                    break;
+                case KIND_BYTES:
+                case KIND_METHOD:
+                    ((SqueakBits) obj).bits = Arrays.copyOfRange(bytes, aByte, aByte + bitsCounts[i]);
+                    aByte += bitsCounts[i];
+                    break;
+                case KIND_FLOAT:
+                    long floatBits = ((long) floatWords[floatWord++] << 32) | (floatWords[floatWord++] & 0xFFFFFFFFL);
+                    obj.setFloatBits(Double.longBitsToDouble(floatBits));
+                    break;
+            }
+        }
+        metrics.installNanos = System.nanoTime() - phaseStart;
+        metrics.objects = count;
+
+        Contents contents = new Contents();
+        contents.objects = objects;
+        contents.specialObjectsArray = objects[header[3]];
+        contents.lastHash = header[4];
+        contents.savedWindowSize = header[5];
+        return contents;
+    }
+
+    private static int[] ints(ByteBuffer in, int n) {
+        int[] ints = new int[n];
+        in.asIntBuffer().get(ints);
+        in.position(in.position() + 4 * n);
+        return ints;
+    }
+}
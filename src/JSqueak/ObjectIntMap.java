@@ -0,0 +1,43 @@
+package JSqueak;
+
+/**
+ * Maps objects to ints by identity, without boxing, for writing images: an
+ * open-addressing hash table with linear probing, the inverse of OopMap.
+ * 0 is not a valid value, as get answers it for objects not in the map.
+ */
+class ObjectIntMap {
+    private final SqueakObject[] keys;
+    private final int[] values;
+    private final int mask;
+
+    ObjectIntMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize)
+            capacity <<= 1;
+        keys = new SqueakObject[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    void put(SqueakObject obj, int value) {
+        int i = System.identityHashCode(obj) & mask;
+        while (keys[i] != null && keys[i] != obj)
+            i = (i + 1) & mask;
+        keys[i] = obj;
+        values[i] = value;
+    }
+
+    /**
+     * @return the value for obj, or 0 if none
+     */
+    int get(SqueakObject obj) {
+        int i = System.identityHashCode(obj) & mask;
+        SqueakObject key;
+        while ((key = keys[i]) != null) {
+            if (key == obj)
+                return values[i];
+            i = (i + 1) & mask;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,162 @@
+package JSqueak;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+
+/**
+ * The weak object table of a SqueakImage: a growable array of weak references,
+ * in creation order, kept as fixed-size chunks so that it can grow to tens of
+ * millions of entries without ever copying the entries themselves.  Only the
+ * small directory of chunks is copied, when it runs out of room.
+ * <p>
+ * Slots answer null when empty, and also for entries whose object has been
+ * collected; SqueakImage compacts them away.  Entries are registered with a
+ * ReferenceQueue, so the table learns of collected objects as the JVM finds
+ * them, and knows how many dead slots there are and where the first one is
+ * without scanning or forcing a collection.
+ * <p>
+ * The last few entries that enumeration answered are kept as hints, so that
+ * nextInstance finds where to resume without a search, even after compaction
+ * has moved them.
+ */
+class ObjectTable {
+    static final int CHUNK_BITS = 16;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int RECENT_SIZE = 8;
+    // an Entry and its slot, on a 64-bit JVM with compressed oops; see HeapHistogram
+    static final int ENTRY_BYTES = 36;
+
+    /**
+     * A slot's reference, which knows its slot while it is in the table.
+     */
+    private static class Entry extends WeakReference<SqueakObject> {
+        int index; //-1 once out of the table
+
+        Entry(SqueakObject obj, ReferenceQueue<SqueakObject> queue, int index) {
+            super(obj, queue);
+            this.index = index;
+        }
+    }
+
+    private Entry[][] chunks;
+    private int chunkCount;
+    private final ReferenceQueue<SqueakObject> collected = new ReferenceQueue<>();
+    private int deadCount;
+    private int firstDead = Integer.MAX_VALUE;
+    // the entries enumeration answered last, whose index compaction keeps current
+    private final Entry[] recent = new Entry[RECENT_SIZE];
+    private int recentNext;
+
+    ObjectTable(int minSize) {
+        chunks = new Entry[16][];
+        while (capacity() < minSize)
+            addChunk();
+    }
+
+    int capacity() {
+        return chunkCount << CHUNK_BITS;
+    }
+
+    /**
+     * Add a chunk's worth of empty slots.
+     */
+    void addChunk() {
+        if (chunkCount == chunks.length) {
+            Entry[][] newChunks = new Entry[2 * chunkCount][];
+            System.arraycopy(chunks, 0, newChunks, 0, chunkCount);
+            chunks = newChunks;
+        }
+        chunks[chunkCount++] = new Entry[CHUNK_SIZE];
+    }
+
+    /**
+     * @return the object at index, or null if the slot is empty or its object was collected
+     */
+    SqueakObject get(int index) {
+        Entry entry = chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        return entry == null ? null : entry.get();
+    }
+
+    void put(int index, SqueakObject obj) {
+        chunks[index >>> CHUNK_BITS][index & CHUNK_MASK] = new Entry(obj, collected, index);
+    }
+
+    /**
+     * Move the entry at from to to, which must not be after it, emptying from.
+     */
+    void move(int from, int to) {
+        Entry[] fromChunk = chunks[from >>> CHUNK_BITS];
+        Entry entry = fromChunk[from & CHUNK_MASK];
+        chunks[to >>> CHUNK_BITS][to & CHUNK_MASK] = entry;
+        if (from != to)
+            fromChunk[from & CHUNK_MASK] = null;
+        if (entry != null)
+            entry.index = to;
+    }
+
+    void clear(int index) {
+        Entry[] chunk = chunks[index >>> CHUNK_BITS];
+        Entry entry = chunk[index & CHUNK_MASK];
+        if (entry != null)
+            entry.index = -1;
+        chunk[index & CHUNK_MASK] = null;
+    }
+
+    /**
+     * Note that enumeration answered the object at index, so that recentIndexOf
+     * finds it when asked for the next one.
+     */
+    void noteEnumerated(int index) {
+        recent[recentNext] = chunks[index >>> CHUNK_BITS][index & CHUNK_MASK];
+        recentNext = (recentNext + 1) % RECENT_SIZE;
+    }
+
+    /**
+     * @return the index of obj if enumeration answered it lately, else -1
+     */
+    int recentIndexOf(SqueakObject obj) {
+        for (Entry entry : recent) {
+            if (entry != null && entry.index >= 0 && entry.get() == obj)
+                return entry.index;
+        }
+        return -1;
+    }
+
+    /**
+     * Take note of the entries whose objects the JVM has collected since last asked.
+     */
+    void pollCollected() {
+        Entry entry;
+        while ((entry = (Entry) collected.poll()) != null) {
+            if (entry.index >= 0) {
+                deadCount++;
+                firstDead = Math.min(firstDead, entry.index);
+            }
+        }
+    }
+
+    /**
+     * @return how many dead slots pollCollected has found that compaction has not yet reclaimed
+     */
+    int deadCount() {
+        return deadCount;
+    }
+
+    /**
+     * @return the lowest dead slot pollCollected has found, or Integer.MAX_VALUE if none
+     */
+    int firstDead() {
+        return firstDead;
+    }
+
+    /**
+     * Note that every slot from start up has been compacted.
+     */
+    void compacted(int start) {
+        if (start <= firstDead) {
+            deadCount = 0;
+            firstDead = Integer.MAX_VALUE;
+        }
+    }
+}
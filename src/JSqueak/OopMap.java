@@ -0,0 +1,75 @@
+package JSqueak;
+
+/**
+ * Maps the oops of a saved image to the objects loaded for them, without
+ * boxing: an open-addressing hash table of int keys with linear probing.
+ * Only ever added to, while the image is read.
+ */
+class OopMap {
+    private int[] keys;
+    private SqueakObject[] values;
+    private int size;
+    private int mask;
+
+    OopMap(int expectedSize) {
+        int capacity = 16;
+        while (capacity < 2 * expectedSize)
+            capacity <<= 1;
+        keys = new int[capacity];
+        values = new SqueakObject[capacity];
+        mask = capacity - 1;
+    }
+
+    private static int slot(int oop) {
+        //oops are word aligned, so mix the bits before masking
+        int h = oop * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    void put(int oop, SqueakObject obj) {
+        if (2 * (size + 1) > keys.length)
+            grow();
+        int i = slot(oop) & mask;
+        while (values[i] != null) {
+            if (keys[i] == oop) {
+                values[i] = obj;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        keys[i] = oop;
+        values[i] = obj;
+        size++;
+    }
+
+    /**
+     * @return the object loaded for oop, or null if none
+     */
+    SqueakObject get(int oop) {
+        int i = slot(oop) & mask;
+        SqueakObject value;
+        while ((value = values[i]) != null) {
+            if (keys[i] == oop)
+                return value;
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        SqueakObject[] oldValues = values;
+        keys = new int[2 * oldKeys.length];
+        values = new SqueakObject[2 * oldKeys.length];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != null)
+                put(oldKeys[i], oldValues[i]);
+        }
+    }
+}
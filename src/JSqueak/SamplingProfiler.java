@@ -0,0 +1,168 @@
+package JSqueak;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Samples the Smalltalk stack of the running process, to see which methods the
+ * image spends its time in.
+ * <p>
+ * A background thread asks for a sample every SqueakConfig.PROFILE_INTERVAL ms by
+ * raising the VM's interrupt check flag; the interpreter takes it at its next
+ * safepoint, i.e. the next send or backward jump (see SqueakVM.checkForInterrupts),
+ * by walking the sender chain of the active context.  Time spent in a long
+ * primitive is therefore charged to the code that runs after it, and time the
+ * VM spends idle in primitiveYield is not sampled at all.
+ * <p>
+ * Samples are written in the collapsed stack format of flamegraph.pl and
+ * similar tools: one line per distinct stack, frames from the outermost in,
+ * separated by semicolons, followed by the number of samples.  Frames are
+ * named "Class>>selector" after the class that defines the method, with
+ * "[] in " in front for blocks.
+ * <p>
+ * Started by -Djsqueak.profile=file, which writes the file on exit, or by the
+ * profiling primitives 250..253 (see SqueakPrimitiveHandler).
+ */
+class SamplingProfiler {
+    static final int MAX_DEPTH = 256; // deeper stacks lose their outermost frames
+
+    private final SqueakVM vm;
+    volatile boolean samplePending;
+    private volatile Thread sampler;
+    private final Map<String, long[]> stacks = new HashMap<>();
+    private final Map<SqueakObject, String> methodNames = new IdentityHashMap<>();
+    private long sampleCount;
+
+    SamplingProfiler(SqueakVM vm) {
+        this.vm = vm;
+    }
+
+    synchronized void start() {
+        if (sampler != null)
+            return;
+        Thread thread = new Thread(this::sampleLoop, "JSqueak profiler");
+        thread.setDaemon(true);
+        sampler = thread;
+        thread.start();
+    }
+
+    synchronized void stop() {
+        if (sampler == null)
+            return;
+        sampler.interrupt();
+        sampler = null;
+        samplePending = false;
+    }
+
+    boolean isRunning() {
+        return sampler != null;
+    }
+
+    private void sampleLoop() {
+        Thread self = Thread.currentThread();
+        while (sampler == self) {
+            try {
+                Thread.sleep(SqueakConfig.PROFILE_INTERVAL);
+            } catch (InterruptedException e) {
+                return;
+            }
+            samplePending = true;
+            vm.interruptCheckPending = true;
+        }
+    }
+
+    /**
+     * Record the stack of the active context.  Called by the interpreter thread.
+     */
+    synchronized void sample() {
+        samplePending = false;
+        List<String> frames = new ArrayList<>();
+        SqueakObject ctxt = vm.activeContext;
+        while (ctxt != vm.nilObj && frames.size() < MAX_DEPTH) {
+            frames.add(frameName(ctxt));
+            ctxt = ctxt.getPointerNI(Squeak.Context_sender);
+        }
+        StringBuilder key = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            key.append(frames.get(i));
+            if (i > 0)
+                key.append(';');
+        }
+        long[] count = stacks.get(key.toString());
+        if (count == null)
+            stacks.put(key.toString(), count = new long[1]);
+        count[0]++;
+        sampleCount++;
+    }
+
+    synchronized void clear() {
+        stacks.clear();
+        methodNames.clear();
+        sampleCount = 0;
+    }
+
+    synchronized long getSampleCount() {
+        return sampleCount;
+    }
+
+    /**
+     * Write the samples so far, in collapsed stack format, to fileName.
+     */
+    synchronized void write(String fileName) throws IOException {
+        try (PrintWriter out = new PrintWriter(new FileWriter(fileName))) {
+            for (Map.Entry<String, long[]> entry : stacks.entrySet())
+                out.println(entry.getKey() + " " + entry.getValue()[0]);
+        }
+    }
+
+    private String frameName(SqueakObject ctxt) {
+        Object meth = ctxt.getPointer(Squeak.Context_method);
+        if (SqueakVM.isSmallInt(meth)) {
+            //a block context: name it after its home method
+            SqueakObject home = ctxt.getPointerNI(Squeak.BlockContext_home);
+            return "[] in " + methodName(home.getPointerNI(Squeak.Context_method), home.getPointer(Squeak.Context_receiver));
+        }
+        return methodName((SqueakObject) meth, ctxt.getPointer(Squeak.Context_receiver));
+    }
+
+    private String methodName(SqueakObject meth, Object rcvr) {
+        String name = methodNames.get(meth);
+        if (name == null) {
+            name = lookupMethodName(meth, vm.getClass(rcvr));
+            methodNames.put(meth, name);
+        }
+        return name;
+    }
+
+    /**
+     * Find the class, from cls up, whose method dictionary holds meth.
+     */
+    private String lookupMethodName(SqueakObject meth, SqueakObject cls) {
+        for (SqueakObject c = cls; c != vm.nilObj; c = c.getPointerNI(Squeak.Class_superclass)) {
+            SqueakObject mDict = c.getPointerNI(Squeak.Class_mdict);
+            if (mDict == vm.nilObj)
+                continue;
+            SqueakObject methArray = mDict.getPointerNI(Squeak.MethodDict_array);
+            for (int i = 0; i < methArray.pointersSize(); i++) {
+                if (methArray.getPointer(i) == meth) {
+                    SqueakObject selector = mDict.getPointerNI(i + Squeak.MethodDict_selectorStart);
+                    return className(c) + ">>" + selector.asString();
+                }
+            }
+        }
+        return className(cls) + ">>?"; //e.g. a doit, or a method since removed
+    }
+
+    static String className(SqueakObject cls) {
+        if (cls.pointersSize() >= 9)
+            return cls.classGetName().asString();
+        //a metaclass: its instance is the class
+        return className(cls.getPointerNI(Squeak.Metaclass_thisClass)) + " class";
+    }
+}
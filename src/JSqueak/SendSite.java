@@ -0,0 +1,78 @@
+package JSqueak;
+
+/**
+ * Inline cache for one send instruction of a CompiledMethod (see SqueakVM.send).
+ * <p>
+ * It remembers the method found for each of the last few receiver classes seen
+ * at that site: one is a monomorphic cache, up to POLYMORPHIC_LIMIT a polymorphic
+ * one.  A site that sees more classes goes megamorphic and leaves lookups to the
+ * global method cache.  The sites of a selector are invalidated together by
+ * bumping the epoch of their Group when the selector, or a method they cache, is
+ * flushed, and all sites by bumping the VM's sendSiteEpoch when the whole method
+ * cache is (see SqueakVM.flushMethodCacheForSelector and friends).
+ */
+class SendSite {
+    static final int POLYMORPHIC_LIMIT = 4;
+
+    /**
+     * The sites bound to one selector.
+     */
+    static final class Group {
+        int epoch;
+    }
+
+    /**
+     * Stands for a method cached by the sites of more than one Group, so that
+     * flushing it has to invalidate all sites.
+     */
+    static final Group SHARED = new Group();
+
+    SqueakObject selector;
+    Group group; //of selector
+    int groupEpoch;
+    int epoch;
+    int size; //entries in use
+    boolean megamorphic;
+    final SqueakObject[] classes = new SqueakObject[POLYMORPHIC_LIMIT];
+    final SqueakObject[] methods = new SqueakObject[POLYMORPHIC_LIMIT];
+    final int[] primIndexes = new int[POLYMORPHIC_LIMIT];
+
+    /**
+     * Make sure the site caches lookups of aSelector that are still valid in vm,
+     * emptying it if not.
+     */
+    void validate(SqueakObject aSelector, SqueakVM vm) {
+        if (selector == aSelector && epoch == vm.sendSiteEpoch && groupEpoch == group.epoch)
+            return;
+        if (selector != aSelector) {
+            selector = aSelector;
+            group = vm.sendSiteGroup(aSelector);
+        }
+        epoch = vm.sendSiteEpoch;
+        groupEpoch = group.epoch;
+        megamorphic = false;
+        for (int i = 0; i < size; i++) {
+            classes[i] = null; // release classes and methods
+            methods[i] = null;
+        }
+        size = 0;
+    }
+
+    int indexOf(SqueakObject lookupClass) {
+        for (int i = 0; i < size; i++)
+            if (classes[i] == lookupClass)
+                return i;
+        return -1;
+    }
+
+    void add(SqueakObject lookupClass, SqueakObject method, int primIndex) {
+        if (size == POLYMORPHIC_LIMIT) {
+            megamorphic = true;
+            return;
+        }
+        classes[size] = lookupClass;
+        methods[size] = method;
+        primIndexes[size] = primIndex;
+        size++;
+    }
+}
@@ -89,6 +89,7 @@ public interface Squeak {
     public final static int Class_mdict = 1;
     public final static int Class_format = 2;
     public final static int Class_name = 6;
+    public final static int Metaclass_thisClass = 6;
 
     // Context layout
     public final static int Context_sender = 0;
@@ -0,0 +1,143 @@
+package JSqueak;
+
+import java.nio.IntBuffer;
+
+/**
+ * A Squeak object of words (format 6) or bytes (formats 8..11): Bitmaps,
+ * Strings, Symbols, LargeIntegers and the like.  Such objects have no pointer
+ * fields, so pointers is always null.
+ * <p>
+ * Objects loaded from a memory-mapped image may hold a Mapped range of the
+ * image in bits instead, until first asked for them; see getBits().
+ */
+class SqueakBits extends SqueakObject {
+    Object bits;       //indexable binary data (bytes or ints), or where to decode them from
+
+    /**
+     * Where in a mapped image's heap the words of a not yet decoded object are.
+     */
+    static final class Mapped {
+        final IntBuffer heap;
+        final int start;
+        final int nWords;
+
+        Mapped(IntBuffer heap, int start, int nWords) {
+            this.heap = heap;
+            this.start = start;
+            this.nWords = nWords;
+        }
+    }
+
+    SqueakBits(int fmt, int hsh) {
+        super(fmt, hsh);
+    }
+
+    SqueakBits(SqueakImage img) {
+        super(img);
+    }
+
+    SqueakBits(SqueakImage img, SqueakObject cls, Object bits) {
+        super(img);
+        sqClass = cls;
+        format = (short) cls.classInstFormat();
+        this.bits = bits;
+    }
+
+    Object getBits() {
+        Object b = bits;
+        if (b instanceof Mapped)
+            return decodeMapped();
+        return b;
+    }
+
+    private synchronized Object decodeMapped() {
+        //the display thread may get here too, and must see the same array
+        if (bits instanceof Mapped) {
+            Mapped mapped = (Mapped) bits;
+            bits = format >= 8 ? decodeBytes(mapped.nWords, mapped.heap, mapped.start) : decodeWords(mapped.heap, mapped.start, mapped.nWords);
+        }
+        return bits;
+    }
+
+    public int bitsSize() {
+        Object b = bits;
+        if (b instanceof byte[])
+            return ((byte[]) b).length;
+        if (b instanceof Mapped) {
+            int nWords = ((Mapped) b).nWords;
+            return format >= 8 ? (nWords * 4) - (format & 3) : nWords;
+        }
+        return ((int[]) b).length;
+    }
+
+    SqueakObject emptyIn(SqueakImage img) {
+        return new SqueakBits(img);
+    }
+
+    void copyStateFrom(SqueakObject other) {
+        super.copyStateFrom(other);
+        //Bits still in a mapped image are only read, so share them rather than
+        //decode them here: a background snapshot must not decode the whole image
+        Object otherBits = other instanceof SqueakBits ? ((SqueakBits) other).bits : other.getBits();
+        if (otherBits instanceof Mapped)
+            bits = otherBits;
+        else if (otherBits instanceof byte[])
+            bits = ((byte[]) otherBits).clone();
+        else if (otherBits instanceof int[])
+            bits = ((int[]) otherBits).clone();
+    }
+
+    void exchangeStateWith(SqueakObject other) {
+        super.exchangeStateWith(other);
+        SqueakBits otherBits = (SqueakBits) other;
+        Object swap = otherBits.bits;
+        otherBits.bits = bits;
+        bits = swap;
+    }
+
+    void installData(OopMap oopMap, IntBuffer words, int start, int nWords) {
+        if (format >= 8) {
+            //Formats 8..11 -- ByteArrays (and Strings)
+            bits = decodeBytes(nWords, words, start);
+        } else {
+            //Format 6 word objects are already OK
+            bits = decodeWords(words, start, nWords);
+        }
+    }
+
+    private static int[] decodeWords(IntBuffer words, int start, int nWords) {
+        int[] newBits = new int[nWords];
+        words.duplicate().position(start).get(newBits); //a duplicate, so other threads may read words too
+        return newBits;
+    }
+
+    /**
+     * Install this object with its class, but leave its data in heap, a
+     * mapped image, to be decoded when first used.
+     */
+    void installMapped(OopMap oopMap, int[] ccArray, int ccInt, IntBuffer heap, int start, int nWords) {
+        installClass(oopMap, ccArray, ccInt);
+        bits = new Mapped(heap, start, nWords);
+    }
+
+    byte[] decodeBytes(int nWords, IntBuffer words, int start) {
+        //Adjust size for low bits and extract bytes from ints
+        int nBytes = (nWords * 4) - (format & 3);
+        byte[] newBits = new byte[nBytes];
+        int wordIx = start;
+        int fourBytes = 0;
+        for (int i = 0; i < nBytes; i++) {
+            if ((i & 3) == 0)
+                fourBytes = words.get(wordIx++);
+            newBits[i] = (byte) (fourBytes >> (8 * (3 - (i & 3))));
+        }
+        return newBits;
+    }
+
+    public String asString() {
+        // debugging only: if body consists of bytes, make a Java String from them
+        if (getBits() instanceof byte[])
+            return new String((byte[]) bits);
+        return super.asString();
+    }
+}
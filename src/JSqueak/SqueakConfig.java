@@ -7,4 +7,99 @@ public class SqueakConfig {
 
     public static final boolean DEBUG_LOGGING = true;
 
+    /**
+     * Run bytecodes from a form of each CompiledMethod that is decoded once and
+     * cached on the method (see DecodedMethod), instead of decoding the raw bytes
+     * on every fetch.  Enable with -Djsqueak.decodedDispatch=true (implied by -Djsqueak.jit and -Djsqueak.ngrams)
+     */
+    public static final boolean DECODED_DISPATCH = Boolean.getBoolean("jsqueak.decodedDispatch") || Boolean.getBoolean("jsqueak.jit")
+            || Integer.getInteger("jsqueak.ngrams", 0) > 0;
+
+    /**
+     * Fuse frequent bytecode sequences into superinstructions in the decoded form.
+     * Disable with -Djsqueak.noSuperinstructions=true
+     */
+    public static final boolean SUPERINSTRUCTIONS = !Boolean.getBoolean("jsqueak.noSuperinstructions");
+
+    /**
+     * Compile methods that get hot into JVM classes (see JitCompiler), starting from
+     * the decoded form, which this implies.  Enable with -Djsqueak.jit=true
+     */
+    public static final boolean JIT = Boolean.getBoolean("jsqueak.jit");
+
+    /**
+     * Activations plus backward jumps after which a method gets compiled.
+     * Set with -Djsqueak.jitThreshold=n
+     */
+    public static final int JIT_THRESHOLD = Integer.getInteger("jsqueak.jitThreshold", 1000);
+
+    /**
+     * Cache lookups at each send instruction (see SendSite) in front of the global
+     * method cache.  Disable with -Djsqueak.noInlineCaches=true
+     */
+    public static final boolean INLINE_CACHES = !Boolean.getBoolean("jsqueak.noInlineCaches");
+
+    /**
+     * Range of SmallIntegers that SqueakVM.smallFromInt answers from a cache instead
+     * of allocating a new Integer each time.  The cache costs 4 or 8 bytes per value
+     * in the range, plus an Integer for each value actually used.  Set with
+     * -Djsqueak.smallIntCacheMin=n and -Djsqueak.smallIntCacheMax=n.  The range is
+     * clipped to the 31-bit SmallInteger range, then to the 2^31 - 9 values an array
+     * can hold, so the full SmallInteger range loses its top values.
+     */
+    public static final int SMALL_INT_CACHE_MIN = Integer.getInteger("jsqueak.smallIntCacheMin", -65536);
+    public static final int SMALL_INT_CACHE_MAX = Integer.getInteger("jsqueak.smallIntCacheMax", 1 << 20);
+
+    /**
+     * Count the most frequent sequences of this many instructions executed, and
+     * print them on exit (see BytecodeNGrams).  Implies DECODED_DISPATCH.
+     * Enable with -Djsqueak.ngrams=n
+     */
+    public static final int NGRAM_LENGTH = Integer.getInteger("jsqueak.ngrams", 0);
+
+    /**
+     * Sample the Smalltalk stack from startup and write the samples to this file,
+     * in collapsed stack format, on exit (see SamplingProfiler).
+     * Enable with -Djsqueak.profile=file
+     */
+    public static final String PROFILE_FILE = System.getProperty("jsqueak.profile");
+
+    /**
+     * Milliseconds between profiler samples.  Set with -Djsqueak.profileInterval=n
+     */
+    public static final int PROFILE_INTERVAL = Math.max(1, Integer.getInteger("jsqueak.profileInterval", 1));
+
+    /**
+     * Print how long each phase of loading the image took (see ImageLoadMetrics).
+     * Enable with -Djsqueak.loadMetrics=true
+     */
+    public static final boolean LOAD_METRICS = Boolean.getBoolean("jsqueak.loadMetrics");
+
+    /**
+     * Install the objects of the image on all cores, when there is more than one.
+     * Disable with -Djsqueak.serialLoad=true
+     */
+    public static final boolean PARALLEL_LOAD = !Boolean.getBoolean("jsqueak.serialLoad");
+
+    /**
+     * Leave the bits of word and byte objects of an uncompressed image, which is
+     * memory-mapped, to be decoded when first used.
+     * Disable with -Djsqueak.eagerLoad=true
+     */
+    public static final boolean LAZY_LOAD = !Boolean.getBoolean("jsqueak.eagerLoad");
+
+    /**
+     * Let the snapshot primitive only copy the objects, and write the image on a
+     * background thread while the interpreter goes on.
+     * Enable with -Djsqueak.backgroundSnapshot=true
+     */
+    public static final boolean BACKGROUND_SNAPSHOT = Boolean.getBoolean("jsqueak.backgroundSnapshot");
+
+    /**
+     * Let the snapshot primitive append only the objects changed since the last full
+     * snapshot to a log next to the image (see DeltaLog).  Takes precedence over
+     * backgroundSnapshot.
+     * Enable with -Djsqueak.deltaSnapshots=true
+     */
+    public static final boolean DELTA_SNAPSHOTS = Boolean.getBoolean("jsqueak.deltaSnapshots");
 }
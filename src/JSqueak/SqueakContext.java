@@ -0,0 +1,21 @@
+package JSqueak;
+
+/**
+ * A MethodContext allocated by the VM, which may be recycled once it returns
+ * unless Smalltalk code got hold of it.  Contexts loaded with the image or
+ * made by other means, copies included, are plain SqueakObjects, and are
+ * never recycled.
+ */
+class SqueakContext extends SqueakObject {
+    boolean contextEscaped; //home of a BlockContext, so never to be recycled
+
+    SqueakContext(SqueakImage img, SqueakObject cls, int indexableSize, SqueakObject filler) {
+        super(img, cls, indexableSize, filler);
+    }
+
+    void exchangeStateWith(SqueakObject other) {
+        super.exchangeStateWith(other);
+        //Smalltalk holds both, so neither may be recycled
+        contextEscaped = ((SqueakContext) other).contextEscaped = true;
+    }
+}
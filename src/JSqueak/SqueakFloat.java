@@ -0,0 +1,62 @@
+package JSqueak;
+
+import java.nio.IntBuffer;
+
+/**
+ * A Float, holding its value unboxed.  To Squeak it is a word object of
+ * size 2, the high and low halves of the IEEE double.
+ */
+class SqueakFloat extends SqueakObject {
+    double value;
+
+    SqueakFloat(int fmt, int hsh) {
+        super(fmt, hsh);
+    }
+
+    SqueakFloat(SqueakImage img) {
+        super(img);
+    }
+
+    SqueakFloat(SqueakImage img, SqueakObject floatClass) {
+        super(img);
+        sqClass = floatClass;
+        format = 6;
+    }
+
+    public int bitsSize() {
+        return 2;
+    }
+
+    double getFloatBits() {
+        return value;
+    }
+
+    void setFloatBits(double value) {
+        this.value = value;
+    }
+
+    SqueakObject emptyIn(SqueakImage img) {
+        return new SqueakFloat(img);
+    }
+
+    void copyStateFrom(SqueakObject other) {
+        super.copyStateFrom(other);
+        value = other.getFloatBits();
+    }
+
+    void exchangeStateWith(SqueakObject other) {
+        super.exchangeStateWith(other);
+        SqueakFloat otherFloat = (SqueakFloat) other;
+        double swap = otherFloat.value;
+        otherFloat.value = value;
+        value = swap;
+    }
+
+    void installData(OopMap oopMap, IntBuffer words, int start, int nWords) {
+        //Floats need two ints to be converted to double
+        long higherBits = ((long) words.get(start)) << 32;
+        //Use unsigned right shift operator to ignore negative sign
+        long lowerBits = ((long) words.get(start + 1) << 32) >>> 32;
+        value = Double.longBitsToDouble(higherBits | lowerBits);
+    }
+}
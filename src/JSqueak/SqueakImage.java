@@ -23,21 +23,40 @@ THE SOFTWARE.
 
 package JSqueak;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
-import java.io.DataOutput;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.lang.ref.WeakReference;
-import java.util.Hashtable;
-import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
 
 /**
  * @author Daniel Ingalls
@@ -45,7 +64,7 @@ import java.util.zip.GZIPOutputStream;
  * A SqueakImage represents the complete state of a running Squeak.
  * This implemenatation uses Java objects (see SqueakObject) for all Squeak objects,
  * with direct pointers between them.  Enumeration is supported by objectTable,
- * which points weakly to all objects.  SmallIntegers are modelled by Java Integers.
+ * which points weakly to all objects, and grows without limit (see ObjectTable).  SmallIntegers are modelled by Java Integers.
  * <p>
  * Some care is taken in reclaiming OT slots, to preserve the order of creation of objects,
  * as this matters for Squeak weak objects, should we ever support them.
@@ -55,20 +74,32 @@ public class SqueakImage {
     private final String DEFAULT_IMAGE_NAME = "jsqueak.image";
 
     private SqueakVM vm;
-    private WeakReference[] objectTable;
+    private ObjectTable objectTable;
     private int otMaxUsed;
     private int otMaxOld;
     private int lastHash;
-    private int lastOTindex;
-
-    private File imageFile;
+    private int savedWindowSize;
+
+    private volatile File imageFile;
+    private volatile Thread backgroundSave;
+    private volatile IOException backgroundSaveFailure;
+    private DeltaLog deltaLog;
+    private boolean awaitSaveOnExit;
+    private ImageLoadMetrics loadMetrics;
+    private final long heapLimit = Runtime.getRuntime().maxMemory();
+    private long liveBytes; //estimated: counted at GCs, plus what was allocated since
+    private NotificationListener lowSpaceListener;
+    private volatile boolean lowSpaceCertain; //a major collection left less than lowSpaceThreshold free
+    // One-way becomes whose references are not rewritten yet: each key is a stub
+    // sharing the state of its value, and == takes them for the same object
+    private final Map<SqueakObject, SqueakObject> forwards = new IdentityHashMap<>();
+    private final Set<SqueakObject> forwardTargets = Collections.newSetFromMap(new IdentityHashMap<>());
 
     // FIXME: Access this through a method
     SqueakObject specialObjectsArray;
 
     public SqueakImage(InputStream raw) throws IOException {
-        imageFile = new File(System.getProperty("user.dir"),
-                DEFAULT_IMAGE_NAME);
+        saveToDefaultFile();
         loaded(raw);
     }
 
@@ -77,44 +108,120 @@ public class SqueakImage {
         loaded(fn);
     }
 
+    /**
+     * Snapshot this image to fn, compressed with the codec its suffix names (see
+     * ImageCodec), if any; uncompressed images load fastest from a local disk.
+     * It is written next to fn and then moved over it, so that a failed save
+     * leaves the old image, and an image that is still mapped from fn stays
+     * intact while it is being read.
+     */
     public void save(File fn) throws IOException {
-        BufferedOutputStream fp = new BufferedOutputStream(new FileOutputStream(fn));
-        GZIPOutputStream gz = new GZIPOutputStream(fp);
-        DataOutputStream ser = new DataOutputStream(gz);
-        writeImage(ser);
-        ser.flush();
-        ser.close();
+        awaitBackgroundSave();
+        deltaLog = null;
+        SqueakObject[] objects = liveObjects();
+        writeAtomically(fn, out -> writeObjects(out, fn, objects, objects, specialObjectsArray, lastHash));
+        imageFile = fn;
+    }
+
+    /**
+     * Snapshot this image to fn as a delta on the last full snapshot made to fn,
+     * which is made first if there is none this session, or once the deltas have
+     * grown to half its size (see DeltaLog).
+     */
+    void saveIncrementally(File fn) throws IOException {
+        if (NativeImageFormat.isNativeName(fn)) {
+            save(fn); //deltas only follow standard images
+            return;
+        }
+        awaitBackgroundSave();
+        SqueakObject[] objects = liveObjects();
+        if (deltaLog != null && deltaLog.isFor(fn) && !deltaLog.isDueForFullSave()) {
+            deltaLog.append(objects, specialObjectsArray, lastHash);
+        } else {
+            deltaLog = null;
+            long stamp = new Random().nextLong() | 1; //never 0, which is no stamp
+            ImageWriter[] writer = new ImageWriter[1];
+            writeAtomically(fn, out -> {
+                writer[0] = new ImageWriter(out);
+                writer[0].write(objects, objects, specialObjectsArray, lastHash, savedWindowSize, stamp);
+            });
+            deltaLog = new DeltaLog(fn, stamp, objects, writer[0]);
+        }
         imageFile = fn;
     }
 
+    private interface ImageOutput {
+        void writeTo(WritableByteChannel out) throws IOException;
+    }
+
+    private static void writeAtomically(File fn, ImageOutput image) throws IOException {
+        File saving = new File(fn.getAbsoluteFile().getParentFile(), fn.getName() + ".saving");
+        try (WritableByteChannel out = ImageCodec.forName(fn).encoder(FileChannel.open(saving.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            image.writeTo(out);
+        }
+        Files.move(saving.toPath(), fn.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
     File imageFile() {
         return imageFile;
     }
 
+    /**
+     * Snapshot to DEFAULT_IMAGE_NAME in the working directory, rather than over
+     * the file this image came from, such as the mini image.
+     */
+    void saveToDefaultFile() {
+        imageFile = new File(System.getProperty("user.dir"), DEFAULT_IMAGE_NAME);
+    }
+
     void bindVM(SqueakVM theVM) {
         vm = theVM;
     }
 
     private void loaded(InputStream raw) throws IOException {
-        BufferedInputStream fp = new BufferedInputStream(raw);
-        GZIPInputStream gz = new GZIPInputStream(fp);
-        DataInputStream ser = new DataInputStream(gz);
-        readImage(ser);
+        loaded(ByteBuffer.wrap(ImageCodec.readFully(raw, raw.available())), false);
     }
 
     private void loaded(File fn) throws IOException {
-        FileInputStream unbuffered = new FileInputStream(fn);
-        loaded(unbuffered);
-        unbuffered.close();
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(fn.toPath(), StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        loaded(mapped, true);
+    }
+
+    /**
+     * Load the image in file, uncompressing it with the codec its magic calls
+     * for.  Bits are only left in file to be decoded lazily when it is mapped
+     * and uncompressed.
+     */
+    private void loaded(ByteBuffer file, boolean mapped) throws IOException {
+        long decodeStart = System.nanoTime();
+        ImageCodec codec = ImageCodec.forMagic(file);
+        ByteBuffer image = codec.decode(file);
+        long decodeNanos = System.nanoTime() - decodeStart;
+        if (NativeImageFormat.isNative(image))
+            readNativeImage(image);
+        else
+            readImage(image, mapped && codec == ImageCodec.RAW && SqueakConfig.LAZY_LOAD);
+        loadMetrics.readNanos += decodeNanos;
+        if (SqueakConfig.LOAD_METRICS)
+            System.out.println(loadMetrics);
+        countLiveBytes();
     }
 
     boolean bulkBecome(Object[] fromPointers, Object[] toPointers, boolean twoWay) {
         int n = fromPointers.length;
-        Object p, ptr, body[], mut;
-        SqueakObject obj;
+        Object p;
         if (n != toPointers.length)
             return false;
-        Hashtable mutations = new Hashtable(n * 4 * (twoWay ? 2 : 1));
+        // Stubs must not change under the pending forwards, nor be exchanged
+        // with another object, which would then share the pointers of the
+        // stub's target; this rewrites the arrays, so it comes first
+        if (!forwards.isEmpty() && touchesForwards(fromPointers, toPointers))
+            compactForwards();
+        Map<Object, Object> mutations = new IdentityHashMap<>(n * (twoWay ? 2 : 1));
         for (int i = 0; i < n; i++) {
             p = fromPointers[i];
             if (!(p instanceof SqueakObject))
@@ -134,13 +241,102 @@ public class SqueakImage {
                 else
                     mutations.put(p, fromPointers[i]);
             }
+            // Exchanging the contents of two objects of the same representation
+            // has the same effect as exchanging every reference to them, without
+            // visiting the whole heap.  Only the rest need the scan below.
+            for (int i = 0; i < n; i++) {
+                SqueakObject from = (SqueakObject) fromPointers[i];
+                SqueakObject to = (SqueakObject) toPointers[i];
+                if (from.getClass() == to.getClass() && !vm.holdsBodyOf(from) && !vm.holdsBodyOf(to)) {
+                    from.exchangeStateWith(to);
+                    mutations.remove(from);
+                    mutations.remove(to);
+                }
+            }
         }
+        if (!twoWay) {
+            // Make stubs of what can be, and leave rewriting the references to
+            // them for one scan later, however many becomes come before it
+            Set<Object> targets = Collections.newSetFromMap(new IdentityHashMap<>(n));
+            targets.addAll(Arrays.asList(toPointers));
+            for (int i = 0; i < n; i++) {
+                SqueakObject from = (SqueakObject) fromPointers[i];
+                if (!targets.contains(from) && !mutations.containsKey(toPointers[i]) && canForward(from, toPointers[i])) {
+                    SqueakObject to = (SqueakObject) toPointers[i];
+                    from.shareStateOf(to);
+                    forwards.put(from, to);
+                    forwardTargets.add(to);
+                    mutations.remove(from);
+                }
+            }
+        }
+        vm.clearCaches(true); //cached lookups may involve the objects changed
+        if (!mutations.isEmpty())
+            forwardReferences(mutations);
+        if (forwards.size() > Math.max(MIN_PENDING_FORWARDS, otMaxUsed / 64))
+            compactForwards();
+        return true;
+    }
+
+    private static final int MIN_PENDING_FORWARDS = 1024;
+
+    /**
+     * @return whether from may stand in for to as a stub: only plain pointer
+     * objects that the VM does not compare by identity itself may, and only
+     * for another such, as a stub for nil, true or false fails the VM's ==
+     */
+    private boolean canForward(SqueakObject from, Object to) {
+        if (from.getClass() != SqueakObject.class || to == null || to.getClass() != SqueakObject.class)
+            return false;
+        if (vm.holdsBodyOf(from) || vm.holdsBodyOf((SqueakObject) to))
+            return false;
+        for (Object special : specialObjectsArray.pointers) {
+            if (special == from || special == from.sqClass || special == to)
+                return false; //nil, true, false, contexts, semaphores...
+        }
+        return true;
+    }
+
+    private boolean touchesForwards(Object[] fromPointers, Object[] toPointers) {
+        for (int i = 0; i < fromPointers.length; i++) {
+            if (forwards.containsKey(fromPointers[i]) || forwardTargets.contains(fromPointers[i])
+                    || forwards.containsKey(toPointers[i]) || forwardTargets.contains(toPointers[i]))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return what obj stands in for, if it is a stub left by a one-way become
+     */
+    Object forwarded(Object obj) {
+        Object to = forwards.isEmpty() ? null : forwards.get(obj);
+        return to == null ? obj : to;
+    }
+
+    /**
+     * Rewrite the references to every stub to the object it stands in for, in
+     * one scan of the object table, and let the stubs go.
+     */
+    private void compactForwards() {
+        if (forwards.isEmpty())
+            return;
+        forwardReferences(forwards);
+        Object receiver = forwards.get(vm.receiver);
+        if (receiver != null)
+            vm.receiver = receiver;
+        forwards.clear();
+        forwardTargets.clear();
+    }
+
+    private void forwardReferences(Map<?, ?> mutations) {
+        Object ptr, body[], mut;
         for (int i = 0; i <= otMaxUsed; i++) {
             // Now, for every object...
-            obj = (SqueakObject) objectTable[i].get();
+            SqueakObject obj = objectTable.get(i);
             if (obj != null) {
                 // mutate the class
-                mut = (SqueakObject) mutations.get(obj.sqClass);
+                mut = mutations.get(obj.sqClass);
                 if (mut != null)
                     obj.sqClass = mut;
                 if ((body = obj.pointers) != null) {
@@ -154,17 +350,17 @@ public class SqueakImage {
                 }
             }
         }
-        return true;
     }
 
     //Enumeration...
     SqueakObject nextInstance(int startingIndex, SqueakObject sqClass) {
         //if sqClass is null, then find next object, else find next instance of sqClass
+        compactForwards(); //so that stubs are not enumerated
         for (int i = startingIndex; i <= otMaxUsed; i++) {
             // For every object...
-            SqueakObject obj = (SqueakObject) objectTable[i].get();
+            SqueakObject obj = objectTable.get(i);
             if (obj != null && (sqClass == null | obj.sqClass == sqClass)) {
-                lastOTindex = i; // save hint for next scan
+                objectTable.noteEnumerated(i); // save hint for next scan
                 return obj;
             }
         }
@@ -172,216 +368,487 @@ public class SqueakImage {
     }
 
     int otIndexOfObject(SqueakObject lastObj) {
-        // hint: lastObj should be at lastOTindex
-        SqueakObject obj = (SqueakObject) objectTable[lastOTindex].get();
-        if (lastOTindex <= otMaxUsed && obj == lastObj) {
-            return lastOTindex;
-        } else {
-            for (int i = 0; i <= otMaxUsed; i++) {
-                // Alas no; have to find it again...
-                obj = (SqueakObject) objectTable[i].get();
-                if (obj == lastObj)
-                    return i;
-            }
+        // hint: lastObj was answered by a recent enumeration
+        int index = objectTable.recentIndexOf(lastObj);
+        if (index >= 0)
+            return index;
+        for (int i = 0; i <= otMaxUsed; i++) {
+            // Alas no; have to find it again...
+            if (objectTable.get(i) == lastObj)
+                return i;
         }
         return -1;  //should not happen
     }
 
+    /**
+     * @return every instance of sqClass, in creation order, in one pass
+     */
+    List<SqueakObject> allInstances(SqueakObject sqClass) {
+        compactForwards();
+        List<SqueakObject> instances = new ArrayList<>();
+        for (int i = 0; i <= otMaxUsed; i++) {
+            SqueakObject obj = objectTable.get(i);
+            if (obj != null && obj.sqClass == sqClass)
+                instances.add(obj);
+        }
+        return instances;
+    }
+
     private final static int OTMinSize = 30000;
-    private final static int OTMaxSize = 60000;
-    private final static int OTGrowSize = 10000;
 
     public short registerObject(SqueakObject obj) {
         //All enumerable objects must be registered
-        if ((otMaxUsed + 1) >= objectTable.length)
-            if (!getMoreOops(OTGrowSize))
-                throw new RuntimeException("Object table has reached capacity");
-        objectTable[++otMaxUsed] = new WeakReference(obj);
+        if ((otMaxUsed + 1) >= objectTable.capacity())
+            getMoreOops();
+        objectTable.put(++otMaxUsed, obj);
         lastHash = 13849 + (27181 * lastHash);
         return (short) (lastHash & 0xFFF);
     }
 
-    private boolean getMoreOops(int request) {
-        int nullCount;
-        int startingOtMaxUsed = otMaxUsed;
-        for (int i = 0; i < 5; i++) {
-            if (i == 2)
-                vm.clearCaches(); //only flush caches after two tries
-            partialGC();
-            nullCount = startingOtMaxUsed - otMaxUsed;
-            if (nullCount >= request)
-                return true;
-        }
-
-        // Sigh -- really need more space...
-        int n = objectTable.length;
-        if (n + request > OTMaxSize) {
-            fullGC();
-            return false;
+    private void getMoreOops() {
+        //Compact away the slots of objects the JVM has collected on its own, if
+        //there are enough of them to be worth it; else add a chunk, which copies
+        //no entries.  Never forces a collection: only the GC primitives do that
+        objectTable.pollCollected();
+        if (objectTable.deadCount() >= ObjectTable.CHUNK_SIZE / 4) {
+            reclaimNullOTSlots(objectTable.firstDead());
+            if ((otMaxUsed + 1) < objectTable.capacity())
+                return;
         }
-        System.out.println("Squeak: growing to " + (n + request) + " objects...");
-        WeakReference newTable[] = new WeakReference[n + request];
-        System.arraycopy(objectTable, 0, newTable, 0, n);
-        objectTable = newTable;
-        return true;
+        objectTable.addChunk();
     }
 
     int partialGC() {
+        //GCmost: collect, then reclaim the slots of new objects
         System.gc();
-        otMaxUsed = reclaimNullOTSlots(otMaxOld);
+        reclaimNullOTSlots(otMaxOld);
+        countLiveBytes();
         return spaceLeft();
     }
 
+    /**
+     * @return the bytes left for objects: the JVM's maximum heap, less the estimate
+     * of what the live objects take, which, unlike the JVM's free memory, does not
+     * jump about with when the JVM collects
+     */
     int spaceLeft() {
-        return (int) Math.min(Runtime.getRuntime().freeMemory(), (long) SqueakVM.maxSmallInt);
+        return (int) Math.max(0, Math.min(heapLimit - liveBytes, (long) SqueakVM.maxSmallInt));
+    }
+
+    /**
+     * Account for obj, just made by the interpreter.
+     */
+    void allocated(SqueakObject obj) {
+        liveBytes += HeapHistogram.shallowBytes(obj) + ObjectTable.ENTRY_BYTES;
+    }
+
+    /**
+     * Watch the heap for the VM's lowSpaceThreshold, which has just been set, by
+     * listening for the JVM's own collections rather than by collecting here.
+     * After a major one what is left in use is what is live, so if it left less
+     * than the threshold free, low space is certain.  What a minor one leaves
+     * also counts garbage that was promoted, so then low space is only likely,
+     * and checkLowSpace() makes sure.
+     */
+    void armLowSpaceCheck() {
+        if (vm.lowSpaceThreshold <= 0 || lowSpaceListener != null)
+            return;
+        Set<String> heapPools = new HashSet<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP)
+                heapPools.add(pool.getName());
+        }
+        lowSpaceListener = (notification, handback) -> {
+            if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(notification.getType()))
+                return;
+            GarbageCollectionNotificationInfo info =
+                    GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+            long used = 0;
+            for (Map.Entry<String, MemoryUsage> pool : info.getGcInfo().getMemoryUsageAfterGc().entrySet()) {
+                if (heapPools.contains(pool.getKey()))
+                    used += pool.getValue().getUsed();
+            }
+            int threshold = vm.lowSpaceThreshold;
+            if (threshold <= 0 || heapLimit - used >= threshold)
+                return;
+            if (!"end of minor GC".equals(info.getGcAction()))
+                lowSpaceCertain = true;
+            vm.requestLowSpaceCheck();
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+            ((NotificationEmitter) gc).addNotificationListener(lowSpaceListener, null, null);
+    }
+
+    /**
+     * Have the VM signal the low space semaphore if a collection left less than
+     * lowSpaceThreshold free.  Unless that was a major collection, make sure with
+     * one, which only happens once the JVM has found the heap that full itself.
+     */
+    void checkLowSpace() {
+        boolean low = lowSpaceCertain;
+        lowSpaceCertain = false;
+        int threshold = vm.lowSpaceThreshold;
+        if (threshold <= 0)
+            return;
+        if (!low) {
+            System.gc();
+            Runtime runtime = Runtime.getRuntime();
+            low = heapLimit - (runtime.totalMemory() - runtime.freeMemory()) < threshold;
+        }
+        if (low)
+            vm.signalLowSpace();
+    }
+
+    private void countLiveBytes() {
+        long bytes = 0;
+        for (int i = 0; i <= otMaxUsed; i++) {
+            SqueakObject obj = objectTable.get(i);
+            if (obj != null)
+                bytes += HeapHistogram.shallowBytes(obj) + ObjectTable.ENTRY_BYTES;
+        }
+        liveBytes = bytes;
     }
 
     int fullGC() {
-        vm.clearCaches();
-        for (int i = 0; i < 5; i++) partialGC();
-        otMaxUsed = reclaimNullOTSlots(0);
-        otMaxOld = Math.min(otMaxOld, otMaxUsed);
+        if (vm != null) { //none when only converting the image
+            compactForwards();
+            vm.clearCaches(false);
+        }
+        System.gc();
+        reclaimNullOTSlots(0);
+        countLiveBytes();
         return spaceLeft();
     }
 
-    private int reclaimNullOTSlots(int start) {
+    private void reclaimNullOTSlots(int start) {
         // Java GC will null out slots in the weak Object Table.
         // This procedure compacts the occupied slots (retaining order),
-        // and returns a new value for otMaxUsed.
+        // and sets otMaxUsed accordingly.
         // If start=0, all are scanned (like full gc);
         // if start=otMaxOld it will skip the old objects (like gcMost).
-        int oldOtMaxUsed = otMaxUsed;
         int writePtr = start;
-        for (int readPtr = start; readPtr <= otMaxUsed; readPtr++)
-            if (objectTable[readPtr].get() != null)
-                objectTable[writePtr++] = objectTable[readPtr];
-        if (writePtr == start)
-            return oldOtMaxUsed;
-        return writePtr - 1;
+        for (int readPtr = start; readPtr <= otMaxUsed; readPtr++) {
+            if (objectTable.get(readPtr) != null)
+                objectTable.move(readPtr, writePtr++);
+            else
+                objectTable.clear(readPtr);
+        }
+        objectTable.compacted(start);
+        otMaxUsed = writePtr - 1;
+        otMaxOld = Math.min(otMaxOld, otMaxUsed);
     }
 
-    private void writeImage(DataOutput ser) throws IOException {
-        // Later...
-        throw new IOException("Image saving is not implemented yet");
+    /**
+     * @return the histogram of the live objects by class, with the sizes they
+     * retain from the special objects array and roots
+     */
+    HeapHistogram heapHistogram(SqueakObject... roots) {
+        SqueakObject[] allRoots = Arrays.copyOf(roots, roots.length + 1);
+        allRoots[roots.length] = specialObjectsArray;
+        return new HeapHistogram(liveObjects(), allRoots);
     }
 
-    private void readImage(DataInput in) throws IOException {
-        //System.err.println("-3.0" + Double.doubleToLongBits(-3.0d));
-        System.out.println("Start reading at " + System.currentTimeMillis());
-        objectTable = new WeakReference[OTMinSize];
-        otMaxUsed = -1;
-        Hashtable oopMap = new Hashtable(30000);
-        boolean doSwap = false;
-        int version = intFromInputSwapped(in, doSwap);
-        if (version != 6502) {
-            version = swapInt(version);
-            if (version != 6502)
-                throw new IOException("bad image version");
-            doSwap = true;
+    /**
+     * Write objects, whose states are as for ImageWriter, in the format the name of fn calls for.
+     */
+    private void writeObjects(WritableByteChannel out, File fn, SqueakObject[] objects, SqueakObject[] states,
+                              SqueakObject specialObjects, int hash) throws IOException {
+        if (NativeImageFormat.isNativeName(fn))
+            NativeImageFormat.write(out, objects, states, specialObjects, hash, savedWindowSize);
+        else
+            new ImageWriter(out).write(objects, states, specialObjects, hash, savedWindowSize, 0);
+    }
+
+    /**
+     * @return every live object, in table order, compacted first
+     */
+    private SqueakObject[] liveObjects() {
+        fullGC();
+        SqueakObject[] objects = new SqueakObject[otMaxUsed + 1];
+        int count = 0;
+        for (int i = 0; i <= otMaxUsed; i++) {
+            SqueakObject obj = objectTable.get(i);
+            if (obj != null)
+                objects[count++] = obj;
+        }
+        return count == objects.length ? objects : Arrays.copyOf(objects, count);
+    }
+
+    /**
+     * Snapshot this image to fn as save() does, but only take a copy of the state
+     * of every object here, and leave writing and compressing it to a background
+     * thread, so that the interpreter can go on meanwhile.  The JVM waits for the
+     * file to be written before it exits.  This image only takes fn as its file
+     * once it has been written; if that fails, the next save, or
+     * awaitBackgroundSave(), throws why.
+     */
+    void saveInBackground(File fn) throws IOException {
+        awaitBackgroundSave();
+        deltaLog = null;
+        SqueakObject[] objects = liveObjects();
+        SqueakObject[] states = new SqueakObject[objects.length];
+        for (int i = 0; i < objects.length; i++)
+            states[i] = objects[i].frozenCopy();
+        SqueakObject specialObjects = specialObjectsArray;
+        int hashAtSave = lastHash;
+        backgroundSave = new Thread(() -> {
+            try {
+                writeAtomically(fn, out -> writeObjects(out, fn, objects, states, specialObjects, hashAtSave));
+                imageFile = fn;
+            } catch (IOException e) {
+                backgroundSaveFailure = e;
+            }
+        }, "JSqueak image save");
+        if (!awaitSaveOnExit) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    awaitBackgroundSave();
+                } catch (IOException e) {
+                    System.err.println("Could not save the image: " + e);
+                }
+            }));
+            awaitSaveOnExit = true;
+        }
+        backgroundSave.start();
+    }
+
+    /**
+     * Wait for the image being saved in the background, if any, to be written,
+     * and throw why it could not be, once, if it failed.
+     */
+    void awaitBackgroundSave() throws IOException {
+        Thread saving = backgroundSave;
+        if (saving != null) {
+            try {
+                saving.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        IOException failure = backgroundSaveFailure;
+        if (failure != null) {
+            backgroundSaveFailure = null;
+            throw failure;
+        }
+    }
+
+    private static ByteOrder imageByteOrder(ByteBuffer header) throws IOException {
+        if (header.duplicate().order(ByteOrder.BIG_ENDIAN).getInt(0) == 6502)
+            return ByteOrder.BIG_ENDIAN;
+        if (header.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt(0) == 6502)
+            return ByteOrder.LITTLE_ENDIAN;
+        throw new IOException("bad image version");
+    }
+
+    /**
+     * Read an uncompressed image.  If lazy, its heap is parsed in place in file,
+     * which should be mapped into memory, and the bits of its word and byte
+     * objects are left there, only decoded when first used, as most of them never
+     * are in a short run.  Objects are still all made at once either way.
+     */
+    private void readImage(ByteBuffer file, boolean lazy) throws IOException {
+        long readStart = System.nanoTime();
+        ByteOrder order = imageByteOrder(file);
+        int headerSize = file.duplicate().order(order).getInt(4);
+        ByteBuffer header = file.duplicate();
+        header.limit(headerSize);
+        IntBuffer headerWords = header.order(order).asIntBuffer();
+        int endOfMemory = headerWords.get(2); //first unused location in heap
+
+        ByteBuffer heapBytes = file.duplicate();
+        heapBytes.limit(headerSize + endOfMemory);
+        heapBytes.position(headerSize);
+        IntBuffer heap = heapBytes.slice().order(order).asIntBuffer();
+        if (!lazy) {
+            //a copy is quicker to read than a view of the file's bytes, and lets the file go
+            int[] words = new int[endOfMemory / 4];
+            heap.get(words);
+            heap = IntBuffer.wrap(words);
         }
-        System.err.println("version passes with swap= " + doSwap);
-        int headerSize = intFromInputSwapped(in, doSwap);
-        int endOfMemory = intFromInputSwapped(in, doSwap); //first unused location in heap
-        int oldBaseAddr = intFromInputSwapped(in, doSwap); //object memory base address of image
-        int specialObjectsOopInt = intFromInputSwapped(in, doSwap); //oop of array of special oops
-        lastHash = intFromInputSwapped(in, doSwap); //Should be loaded from, and saved to the image header
-        int savedWindowSize = intFromInputSwapped(in, doSwap);
-        int fullScreenFlag = intFromInputSwapped(in, doSwap);
-        int extraVMMemory = intFromInputSwapped(in, doSwap);
-        in.skipBytes(headerSize - (9 * 4)); //skip to end of header
-
-        for (int i = 0; i < endOfMemory; ) {
+        readHeap(headerWords, heap, lazy, readStart);
+    }
+
+    private void readNativeImage(ByteBuffer file) throws IOException {
+        ImageLoadMetrics metrics = new ImageLoadMetrics();
+        NativeImageFormat.Contents contents = NativeImageFormat.read(file, metrics);
+        long phaseStart = System.nanoTime();
+        objectTable = new ObjectTable(Math.max(OTMinSize, contents.objects.length));
+        otMaxUsed = -1;
+        for (SqueakObject obj : contents.objects)
+            registerObject(obj);
+        metrics.createNanos += System.nanoTime() - phaseStart;
+        specialObjectsArray = contents.specialObjectsArray;
+        lastHash = contents.lastHash;
+        savedWindowSize = contents.savedWindowSize;
+        otMaxOld = otMaxUsed;
+        loadMetrics = metrics;
+    }
+
+    /**
+     * Make the objects of an image from the words of its heap, which are only
+     * read by index, so that tasks installing objects in parallel may share them.
+     * If lazy, word and byte objects are left to decode their bits from words.
+     */
+    private void readHeap(IntBuffer headerWords, IntBuffer words, boolean lazy, long readStart) throws IOException {
+        ImageLoadMetrics metrics = new ImageLoadMetrics();
+        objectTable = new ObjectTable(OTMinSize);
+        otMaxUsed = -1;
+        int oldBaseAddr = headerWords.get(3); //object memory base address of image
+        int specialObjectsOopInt = headerWords.get(4); //oop of array of special oops
+        lastHash = headerWords.get(5); //Should be loaded from, and saved to the image header
+        savedWindowSize = headerWords.get(6); //kept for saving; then fullScreenFlag and extraVMMemory, which we ignore
+        long stamp = ((long) headerWords.get(9) << 32) | (headerWords.get(10) & 0xFFFFFFFFL); //see ImageWriter
+        metrics.bytes = headerWords.get(1) + 4L * words.limit();
+        metrics.readNanos = System.nanoTime() - readStart;
+        long phaseStart = System.nanoTime();
+
+        //Objects are only created once the headers have all been parsed, as which
+        //ones are Floats, and so need a SqueakFloat, is only known from the special objects
+        int[] objects = new int[6 * Math.max(1024, words.limit() / 8)]; //oop, classInt, format, hash, first word, nWords of each
+        int count = 0;
+        int specialObjectsStart = -1;
+        for (int i = 0; i < words.limit(); ) {
             int nWords = 0;
             int classInt = 0;
-            int[] data;
-            int format = 0;
-            int hash = 0;
-            int header = intFromInputSwapped(in, doSwap);
-            switch (header & Squeak.HeaderTypeMask) {
+            int hdr = words.get(i++);
+            switch (hdr & Squeak.HeaderTypeMask) {
                 case Squeak.HeaderTypeSizeAndClass:
-                    nWords = header >> 2;
-                    classInt = intFromInputSwapped(in, doSwap) - Squeak.HeaderTypeSizeAndClass;
-                    header = intFromInputSwapped(in, doSwap);
-                    i = i + 12;
+                    nWords = hdr >> 2;
+                    classInt = words.get(i++) - Squeak.HeaderTypeSizeAndClass;
+                    hdr = words.get(i++);
                     break;
                 case Squeak.HeaderTypeClass:
-                    classInt = header - Squeak.HeaderTypeClass;
-                    header = intFromInputSwapped(in, doSwap);
-                    i = i + 8;
-                    nWords = (header >> 2) & 63;
+                    classInt = hdr - Squeak.HeaderTypeClass;
+                    hdr = words.get(i++);
+                    nWords = (hdr >> 2) & 63;
                     break;
                 case Squeak.HeaderTypeFree:
                     throw new IOException("Unexpected free block");
                 case Squeak.HeaderTypeShort:
-                    i = i + 4;
-                    classInt = (header >> 12) & 31; //compact class index
+                    classInt = (hdr >> 12) & 31; //compact class index
                     //Note classInt<32 implies compact class index
-                    nWords = (header >> 2) & 63;
+                    nWords = (hdr >> 2) & 63;
                     break;
             }
-            int baseAddr = i - 4; //0-rel byte oop of this object (base header)
+            int oop = (i - 1) * 4 + oldBaseAddr; //oop of this object (base header)
             nWords--;  //length includes base header which we have already read
-            format = ((header >> 8) & 15);
-            hash = ((header >> 17) & 4095);
-
+            int n = 6 * count++;
+            if (n == objects.length)
+                objects = Arrays.copyOf(objects, 2 * n);
             // Note classInt and data are just raw data; no base addr adjustment and no Int conversion
-            data = new int[nWords];
-            for (int j = 0; j < nWords; j++)
-                data[j] = intFromInputSwapped(in, doSwap);
-            i = i + (nWords * 4);
-
-            SqueakObject javaObject = new SqueakObject(new Integer(classInt), (short) format, (short) hash, data);
+            objects[n] = oop;
+            objects[n + 1] = classInt;
+            objects[n + 2] = (hdr >> 8) & 15; //format
+            objects[n + 3] = (hdr >> 17) & 4095; //hash
+            objects[n + 4] = i;
+            objects[n + 5] = nWords;
+            if (oop == specialObjectsOopInt)
+                specialObjectsStart = i;
+            i = i + nWords;
+        }
+        if (specialObjectsStart < 0)
+            throw new IOException("special objects array not found");
+        int[] ccArray = makeCCArray(objects, count, words, words.get(specialObjectsStart + Squeak.splOb_CompactClasses));
+        int floatOop = words.get(specialObjectsStart + Squeak.splOb_ClassFloat);
+        metrics.parseNanos = System.nanoTime() - phaseStart;
+        phaseStart = System.nanoTime();
+
+        OopMap oopMap = new OopMap(count); //from old oops to new objects
+        for (int n = 0; n < 6 * count; n += 6) {
+            int classInt = objects[n + 1];
+            int format = objects[n + 2];
+            int classOop = classInt > 0 && classInt < 32 ? ccArray[classInt - 1] : classInt;
+            SqueakObject javaObject = SqueakObject.fromImage(format, objects[n + 3], format == 6 && classOop == floatOop);
             registerObject(javaObject);
-            //oopMap is from old oops to new objects
-            //Why can't we use ints as keys??...
-            oopMap.put(new Integer(baseAddr + oldBaseAddr), javaObject);
+            oopMap.put(objects[n], javaObject);
         }
+        metrics.createNanos = System.nanoTime() - phaseStart;
+        phaseStart = System.nanoTime();
 
-        //Temp version of spl objs needed for makeCCArray; not a good object yet
-        specialObjectsArray = (SqueakObject) (oopMap.get(new Integer(specialObjectsOopInt)));
-        Integer[] ccArray = makeCCArray(oopMap, specialObjectsArray);
-        int oldOop = specialObjectsArray.oldOopAt(Squeak.splOb_ClassFloat);
-        SqueakObject floatClass = ((SqueakObject) oopMap.get(new Integer(oldOop)));
-        System.out.println("Start installs at " + System.currentTimeMillis());
-        for (int i = 0; i < otMaxUsed; i++) {
-            // Don't need oldBaseAddr here**
-            ((SqueakObject) objectTable[i].get()).install(oopMap, ccArray, floatClass);
+        boolean parallel = SqueakConfig.PARALLEL_LOAD && Runtime.getRuntime().availableProcessors() > 1;
+        InstallTask installAll = new InstallTask(oopMap, ccArray, words, lazy, objects, 0, otMaxUsed + 1, parallel);
+        if (parallel)
+            ForkJoinPool.commonPool().invoke(installAll);
+        else
+            installAll.compute();
+        specialObjectsArray = oopMap.get(specialObjectsOopInt);
+        DeltaLog.replay(imageFile, stamp, this, oopMap, floatOop);
+        otMaxOld = otMaxUsed;
+        metrics.installNanos = System.nanoTime() - phaseStart;
+        metrics.objects = count;
+        loadMetrics = metrics;
+    }
+
+    /**
+     * Installs the objects from index start up to end.  Installing an object only
+     * writes to that object, and only reads the oop map and the image's words,
+     * so objects can be installed in any order, in parallel, with the same result.
+     */
+    private class InstallTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private static final int SERIAL_SIZE = 4096;
+        private static final int LAZY_MIN_WORDS = 8; //smaller bits take less room decoded than mapped
+        private final OopMap oopMap;
+        private final int[] ccArray;
+        private final IntBuffer words;
+        private final boolean lazy;
+        private final int[] objects;
+        private final int start;
+        private final int end;
+        private final boolean parallel;
+
+        InstallTask(OopMap oopMap, int[] ccArray, IntBuffer words, boolean lazy, int[] objects,
+                    int start, int end, boolean parallel) {
+            this.oopMap = oopMap;
+            this.ccArray = ccArray;
+            this.words = words;
+            this.lazy = lazy;
+            this.objects = objects;
+            this.start = start;
+            this.end = end;
+            this.parallel = parallel;
         }
 
-        System.out.println("Done installing at " + System.currentTimeMillis());
-        //Proper version of spl objs -- it's a good object
-        specialObjectsArray = (SqueakObject) (oopMap.get(new Integer(specialObjectsOopInt)));
-        otMaxOld = otMaxUsed;
+        protected void compute() {
+            if (parallel && end - start > SERIAL_SIZE) {
+                int middle = (start + end) >>> 1;
+                invokeAll(new InstallTask(oopMap, ccArray, words, lazy, objects, start, middle, true),
+                        new InstallTask(oopMap, ccArray, words, lazy, objects, middle, end, true));
+                return;
+            }
+            for (int i = start; i < end; i++) {
+                // Don't need oldBaseAddr here**
+                SqueakObject obj = objectTable.get(i);
+                int nWords = objects[6 * i + 5];
+                if (lazy && nWords >= LAZY_MIN_WORDS && obj.getClass() == SqueakBits.class)
+                    ((SqueakBits) obj).installMapped(oopMap, ccArray, objects[6 * i + 1], words, objects[6 * i + 4], nWords);
+                else
+                    obj.install(oopMap, ccArray, objects[6 * i + 1], words, objects[6 * i + 4], nWords);
+            }
+        }
     }
 
-    private int intFromInputSwapped(DataInput in, boolean doSwap) throws IOException {
-        // Return an int from stream 'in', swizzled if doSwap is true
-        if (doSwap)
-            return swapInt(in.readInt());
-        else
-            return in.readInt();
+    /**
+     * Take the state a DeltaLog record left the image in.
+     */
+    void replayed(SqueakObject specialObjects, int hash) {
+        specialObjectsArray = specialObjects;
+        lastHash = hash;
     }
 
-    private int swapInt(int toSwap) {
-        // Return an int with byte order reversed
-        int incoming = toSwap;
-        int outgoing = 0;
-        for (int i = 0; i < 4; i++) {
-            int lowByte = incoming & 255;
-            outgoing = (outgoing << 8) + lowByte;
-            incoming = incoming >> 8;
-        }
-        return outgoing;
+    ImageLoadMetrics loadMetrics() {
+        return loadMetrics;
     }
 
-    private Integer[] makeCCArray(Hashtable oopMap, SqueakObject splObs) {
+    private int[] makeCCArray(int[] objects, int count, IntBuffer words, int compactClassesOop) {
         //Makes an aray of the complact classes as oldOops (still need to be mapped)
-        int oldOop = splObs.oldOopAt(Squeak.splOb_CompactClasses);
-        SqueakObject compactClassesArray = ((SqueakObject) oopMap.get(new Integer(oldOop)));
-        Integer[] ccArray = new Integer[31];
-        for (int i = 0; i < 31; i++) {
-            ccArray[i] = new Integer(compactClassesArray.oldOopAt(i));
+        for (int n = 0; n < 6 * count; n += 6) {
+            if (objects[n] == compactClassesOop) {
+                int[] ccArray = new int[31];
+                words.duplicate().position(objects[n + 4]).get(ccArray);
+                return ccArray;
+            }
         }
-        return ccArray;
+        throw new IllegalStateException("compact classes array not found");
     }
 }
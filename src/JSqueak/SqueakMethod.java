@@ -0,0 +1,69 @@
+package JSqueak;
+
+import java.nio.IntBuffer;
+
+/**
+ * A CompiledMethod (formats 12..15): the header and literals in pointers,
+ * followed by the bytecodes in bits, along with what the VM derives from them.
+ */
+class SqueakMethod extends SqueakBits {
+    DecodedMethod decodedMethod; //bytecodes decoded for dispatch, or null
+    SendSite[] sendSites; //inline caches indexed by pc, or null
+
+    SqueakMethod(int fmt, int hsh) {
+        super(fmt, hsh);
+    }
+
+    SqueakMethod(SqueakImage img) {
+        super(img);
+    }
+
+    SqueakMethod(SqueakImage img, SqueakObject cls, byte[] bytes) {
+        super(img, cls, bytes); //Methods require further init of pointers
+    }
+
+    SqueakObject emptyIn(SqueakImage img) {
+        return new SqueakMethod(img);
+    }
+
+    DecodedMethod methodDecoded() {
+        //Decode on first use; see methodFlushDecoded for when this must be redone
+        if (decodedMethod == null)
+            decodedMethod = new DecodedMethod((byte[]) getBits());
+        return decodedMethod;
+    }
+
+    void methodFlushDecoded() {
+        //Call whenever the bytecodes of this method may have changed
+        decodedMethod = null;
+        sendSites = null;
+    }
+
+    SendSite methodSendSite(int pc) {
+        //The inline cache for the send ending at pc, created on first use
+        if (sendSites == null)
+            sendSites = new SendSite[((byte[]) bits).length];
+        SendSite site = sendSites[pc];
+        if (site == null)
+            site = sendSites[pc] = new SendSite();
+        return site;
+    }
+
+    void exchangeStateWith(SqueakObject other) {
+        super.exchangeStateWith(other);
+        methodFlushDecoded();
+        ((SqueakMethod) other).methodFlushDecoded();
+    }
+
+    void installData(OopMap oopMap, IntBuffer words, int start, int nWords) {
+        //Formats 12-15 -- CompiledMethods both pointers and bits
+        int methodHeader = words.get(start);
+        int numLits = (methodHeader >> 10) & 255;
+        pointers = decodePointers(numLits + 1, words, start, oopMap); //header+lits
+        bits = decodeBytes(nWords - (numLits + 1), words, start + numLits + 1);
+    }
+
+    public String asString() {
+        return "a CompiledMethod";
+    }
+}
@@ -23,35 +23,34 @@ THE SOFTWARE.
 
 package JSqueak;
 
+import java.nio.IntBuffer;
 import java.util.Arrays;
-import java.util.Hashtable;
 
 /**
  * @author Daniel Ingalls
  * <p>
  * Squeak objects are modelled by Java objects with separate binary and pointer data.
- * Later this could be optimized for objects that have only one or the other, but for
- * now it is simple, and handles the inhomogeneous case of CompiledMethods nicely.
+ * This class holds pointer objects; subclasses hold the other formats, so each
+ * object only carries the fields its format needs: SqueakBits for words and bytes,
+ * SqueakMethod for CompiledMethods, SqueakFloat for Floats, and SqueakContext for
+ * the MethodContexts the VM allocates.  The pointers slot stays here even for bits,
+ * as the interpreter reaches context slots through it directly.
  * <p>
  * Weak fields are not currently supported.  The plan for doing this would be
  * to make those objects a subclass, and put pointers in a WeakField.  We would
  * need to replace all patterns of obj.pointers with an access function.
  * Then we would associate a finalization routine with those pointers.
  */
-public class SqueakObject //Later make variants for common formats
-{
+public class SqueakObject {
     short hash;        //12-bit Squeak hash
     short format;      // 4-bit Squeak format
     Object sqClass;  //squeak class
     Object[] pointers; //pointer fields; fixed as well as indexable
-    Object bits;       //indexable binary data (bytes or ints)
 
-    SqueakObject(Integer cls, int fmt, int hsh, int[] imageData) {
-        //Initial creation from SqueakImage, with unmapped data
-        sqClass = cls;
+    SqueakObject(int fmt, int hsh) {
+        //Initial creation from SqueakImage; see install, which sets the class
         format = (short) fmt;
         hash = (short) hsh;
-        bits = imageData;
     }
 
     SqueakObject(SqueakImage img) {
@@ -60,24 +59,42 @@ public class SqueakObject //Later make variants for common formats
     }
 
     SqueakObject(SqueakImage img, SqueakObject cls, int indexableSize, SqueakObject filler) {
-        //Creation of objects from Squeak
+        //Creation of pointer objects from Squeak
         this(img);
         sqClass = cls;
-        int instSpec = SqueakVM.intFromSmall(cls.getPointerI(Squeak.Class_format));
-        int instSize = ((instSpec >> 1) & 0x3F) + ((instSpec >> 10) & 0xC0) - 1; //0-255
-        format = ((short) ((instSpec >> 7) & 0xF)); //This is the 0-15 code
-
-        if (format < 8) {
-            if (format != 6) {
-                pointers = new Object[instSize + indexableSize];
-                Arrays.fill(pointers, filler);
-            } else {
-                if (indexableSize >= 0)
-                    bits = new int[indexableSize];
-            }
-        } else {
-            bits = new byte[indexableSize];  //Methods require further init of pointers
-        }
+        format = (short) cls.classInstFormat();
+        pointers = new Object[cls.classInstSize() + indexableSize];
+        Arrays.fill(pointers, filler);
+    }
+
+    /**
+     * Answer a new instance of cls, of the subclass its format calls for.
+     * Formats 6 and up get their indexable fields zeroed, and methods still
+     * need their header and literals (see methodAddPointers).
+     */
+    static SqueakObject newInstance(SqueakImage img, SqueakObject cls, int indexableSize, SqueakObject filler) {
+        int format = cls.classInstFormat();
+        if (format < 6)
+            return new SqueakObject(img, cls, indexableSize, filler);
+        if (format < 8)
+            return new SqueakBits(img, cls, new int[indexableSize]);
+        if (format < 12)
+            return new SqueakBits(img, cls, new byte[indexableSize]);
+        return new SqueakMethod(img, cls, new byte[indexableSize]);
+    }
+
+    /**
+     * Answer an uninstalled object of the subclass for format, for SqueakImage to
+     * install from the words it read.
+     */
+    static SqueakObject fromImage(int fmt, int hsh, boolean isFloat) {
+        if (fmt < 6)
+            return new SqueakObject(fmt, hsh);
+        if (isFloat)
+            return new SqueakFloat(fmt, hsh);
+        if (fmt < 12)
+            return new SqueakBits(fmt, hsh);
+        return new SqueakMethod(fmt, hsh);
     }
 
 //      Definition of Squeak's format code...
@@ -126,14 +143,15 @@ public class SqueakObject //Later make variants for common formats
         return pointers == null ? 0 : pointers.length;
     }
 
+    /**
+     * @return indexable binary data, an int[] or byte[], or null if none
+     */
+    Object getBits() {
+        return null;
+    }
+
     public int bitsSize() {
-        if (bits == null)
-            return 0;
-        if (bits instanceof byte[])
-            return ((byte[]) bits).length;
-        if (bits instanceof Double)
-            return 2;
-        return ((int[]) bits).length;
+        return 0;
     }
 
     public int instSize() //same as class.classInstSize, but faster from format
@@ -150,37 +168,82 @@ public class SqueakObject //Later make variants for common formats
         return ((instSpec >> 1) & 0x3F) + ((instSpec >> 10) & 0xC0) - 1; //0-255
     }
 
+    int classInstFormat() {
+        int instSpec = SqueakVM.intFromSmall(this.getPointerI(Squeak.Class_format));
+        return (instSpec >> 7) & 0xF; //This is the 0-15 code
+    }
+
     public SqueakObject classGetName() {
         return this.getPointerNI(Squeak.Class_name);
     }
 
     SqueakObject cloneIn(SqueakImage img) {
         //Need to get new hash, OT entry...
-        SqueakObject clone = new SqueakObject(img);
+        SqueakObject clone = emptyIn(img);
         clone.copyStateFrom(this);
+        img.allocated(clone);
         return clone;
     }
 
-    private void copyStateFrom(SqueakObject other) {
+    SqueakObject emptyIn(SqueakImage img) {
+        //A registered stub of the same representation as this
+        return new SqueakObject(img);
+    }
+
+    void copyStateFrom(SqueakObject other) {
         sqClass = other.sqClass;
         format = other.format;
-        pointers = (Object[]) other.pointers.clone();
-        Object otherBits = other.bits;
-        if (otherBits == null)
-            return;
-        if (otherBits instanceof byte[])
-            bits = ((byte[]) other.bits).clone();
-        else if (otherBits instanceof int[])
-            bits = ((int[]) other.bits).clone();
+        if (other.pointers != null)
+            pointers = other.pointers.clone();
     }
 
-    double getFloatBits()  // isn't this slow?'
-    {
-        return ((Double) bits).doubleValue();
+    /**
+     * Answer an unregistered copy of this object as it is now, for writing out
+     * while it goes on changing (see SqueakImage.saveInBackground).
+     */
+    SqueakObject frozenCopy() {
+        SqueakObject copy = fromImage(format, hash, this instanceof SqueakFloat);
+        copy.copyStateFrom(this);
+        return copy;
+    }
+
+    /**
+     * Exchange everything but Java identity with other, which must be of the
+     * same class, so that each becomes what the other was (see SqueakImage.bulkBecome).
+     */
+    void exchangeStateWith(SqueakObject other) {
+        short otherHash = other.hash;
+        other.hash = hash;
+        hash = otherHash;
+        short otherFormat = other.format;
+        other.format = format;
+        format = otherFormat;
+        Object otherClass = other.sqClass;
+        other.sqClass = sqClass;
+        sqClass = otherClass;
+        Object[] otherPointers = other.pointers;
+        other.pointers = pointers;
+        pointers = otherPointers;
+    }
+
+    /**
+     * Stand in for other until the references to this are forwarded to it (see
+     * SqueakImage.bulkBecome): take its class, format and hash, and share its
+     * pointers, so that stores through either are seen through both.
+     */
+    void shareStateOf(SqueakObject other) {
+        sqClass = other.sqClass;
+        format = other.format;
+        hash = other.hash;
+        pointers = other.pointers;
+    }
+
+    double getFloatBits() {
+        throw new ClassCastException("not a Float");
     }
 
     void setFloatBits(double value) {
-        bits = new Double(value);
+        throw new ClassCastException("not a Float");
     }
 
     //CompiledMethods
@@ -236,91 +299,45 @@ public class SqueakObject //Later make variants for common formats
     }
 
     //Methods below here are only used for reading the Squeak image format
-    public void install(Hashtable oopMap, Integer[] ccArray, SqueakObject floatClass) {
+    public void install(OopMap oopMap, int[] ccArray, int ccInt, IntBuffer words, int start, int nWords) {
         //Install this object by decoding format, and rectifying pointers
-        int ccInt = ((Integer) sqClass).intValue();
+        installClass(oopMap, ccArray, ccInt);
+        installData(oopMap, words, start, nWords);
+    }
+
+    void installClass(OopMap oopMap, int[] ccArray, int ccInt) {
+        //ccInt is the class oop as read, or a compact class index below 32
         if ((ccInt > 0) && (ccInt < 32))
             sqClass = oopMap.get(ccArray[ccInt - 1]);
         else
-            sqClass = oopMap.get(sqClass);
-        int nWords = ((int[]) bits).length;
-        if (format < 5) {
-            //Formats 0...4 -- Pointer fields
-            pointers = decodePointers(nWords, ((int[]) bits), oopMap);
-            bits = null;
-        } else {
-            if (format >= 12) {
-                //Formats 12-15 -- CompiledMethods both pointers and bits
-                int methodHeader = ((int[]) bits)[0];
-                int numLits = (methodHeader >> 10) & 255;
-                pointers = decodePointers(numLits + 1, ((int[]) bits), oopMap); //header+lits
-                bits = decodeBytes(nWords - (numLits + 1), ((int[]) bits), numLits + 1, format & 3);
-            } else if (format >= 8) {
-                //Formats 8..11 -- ByteArrays (and Strings)
-                bits = decodeBytes(nWords, ((int[]) bits), 0, format & 3);
-            }
-            //Format 6 word objects are already OK (except Floats...)
-            else if (sqClass == floatClass) {
-                //Floats need two ints to be converted to double
-                long higherBits = ((long) ((int[]) bits)[0]) << 32;
-                //Use unsigned right shift operator to ignore negative sign
-                long lowerBits = ((long) ((int[]) bits)[1] << 32) >>> 32;
-                long longBits = higherBits | lowerBits;
-
-                bits = Double.longBitsToDouble(longBits);
-            }
-            //System.err.println((Double)bits + " " + Double.doubleToRawLongBits(((Double)bits).doubleValue()));
-        }
+            sqClass = oopMap.get(ccInt);
+    }
+
+    void installData(OopMap oopMap, IntBuffer words, int start, int nWords) {
+        //Formats 0...5 -- Pointer fields
+        pointers = decodePointers(nWords, words, start, oopMap);
     }
 
-    private Object[] decodePointers(int nWords, int[] theBits, Hashtable oopMap) {
+    Object[] decodePointers(int nWords, IntBuffer words, int start, OopMap oopMap) {
         //Convert small ints and look up object pointers in oopMap
         Object[] ptrs = new Object[nWords];
         for (int i = 0; i < nWords; i++) {
-            int oldOop = theBits[i];
+            int oldOop = words.get(start + i);
             if ((oldOop & 1) == 1)
                 ptrs[i] = SqueakVM.smallFromInt(oldOop >> 1);
             else
-                ptrs[i] = oopMap.get(new Integer(oldOop));
+                ptrs[i] = oopMap.get(oldOop);
         }
         return ptrs;
     }
 
-    private byte[] decodeBytes(int nWords, int[] theBits, int wordOffset, int fmtLoBits) {
-        //Adjust size for low bits and extract bytes from ints
-        int nBytes = (nWords * 4) - (format & 3);
-        byte[] newBits = new byte[nBytes];
-        int wordIx = wordOffset;
-        int fourBytes = 0;
-        for (int i = 0; i < nBytes; i++) {
-            if ((i & 3) == 0)
-                fourBytes = theBits[wordIx++];
-            int pickByte = (fourBytes >> (8 * (3 - (i & 3)))) & 255;
-            if (pickByte >= 128)
-                pickByte = pickByte - 256;
-            newBits[i] = (byte) pickByte;
-        }
-        return newBits;
-    }
-
-    public int oldOopAt(int zeroBasedOffset) {
-        return ((int[]) bits)[zeroBasedOffset];
-    }
-
     public String asString() {
         // debugging only: if body consists of bytes, make a Java String from them
-        if (bits != null && bits instanceof byte[]) {
-            if (pointers != null)
-                return "a CompiledMethod";
-            else
-                return new String((byte[]) bits);
-        } else {
-            SqueakObject itsClass = this.getSqClass();
-            if (itsClass.pointersSize() >= 9)
-                return "a " + itsClass.classGetName().asString();
-            else
-                return "Class " + this.classGetName().asString();
-        }
+        SqueakObject itsClass = this.getSqClass();
+        if (itsClass.pointersSize() >= 9)
+            return "a " + itsClass.classGetName().asString();
+        else
+            return "Class " + this.classGetName().asString();
     }
 
     public String toString() {
@@ -331,7 +348,7 @@ public class SqueakObject //Later make variants for common formats
      * FIXME: what is the right way to achieve this?
      */
     void setByte(int zeroBasedIndex, byte value) {
-        byte[] bytes = (byte[]) bits;
+        byte[] bytes = (byte[]) getBits();
 
         bytes[zeroBasedIndex] = value;
     }
@@ -340,7 +357,7 @@ public class SqueakObject //Later make variants for common formats
      * FIXME: what is the right way to achieve this?
      */
     byte getByte(int zeroBasedIndex) {
-        byte[] bytes = (byte[]) bits;
+        byte[] bytes = (byte[]) getBits();
 
         return bytes[zeroBasedIndex];
     }
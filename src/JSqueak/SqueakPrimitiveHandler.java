@@ -33,6 +33,7 @@ import java.awt.event.WindowEvent;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.List;
 
 /**
  * @author Daniel Ingalls
@@ -49,6 +50,7 @@ class SqueakPrimitiveHandler {
     private final FileSystemPrimitives fileSystemPrimitives = new FileSystemPrimitives(this);
 
     private Screen theDisplay;
+    private boolean batchMode; // see BatchEvaluator
     private int[] displayBitmap;
     private int displayRaster;
     private int BWMask = 0;
@@ -183,11 +185,11 @@ class SqueakPrimitiveHandler {
         }
     }
 
-    private static boolean primitiveEq(Object arg1, Object arg2) {
-        // == must work for uninterned small ints
+    private boolean primitiveEq(Object arg1, Object arg2) {
+        // == must work for uninterned small ints, and for stubs left by becomeForward:
         if (SqueakVM.isSmallInt(arg1) && SqueakVM.isSmallInt(arg2))
             return ((Integer) arg1).intValue() == ((Integer) arg2).intValue();
-        return arg1 == arg2;
+        return arg1 == arg2 || image.forwarded(arg1) == image.forwarded(arg2);
     }
 
     private Object primitiveBitAnd() {
@@ -286,6 +288,8 @@ class SqueakPrimitiveHandler {
                     break;
                 case 18:
                     return primitiveMakePoint();
+                case 19:
+                    return primitiveDebuggerTrap(); // Debugger openContext:label:contents:
                 case 40:
                     popNandPush(1, primitiveAsFloat());
                     break;
@@ -427,7 +431,7 @@ class SqueakPrimitiveHandler {
                     popNandPush(1, primitiveKbdPeek()); // Sensor kbdPeek
                     break;
                 case 110:
-                    popNandPush(2, (vm.stackValue(1) == vm.stackValue(0)) ? vm.trueObj : vm.falseObj); // ==
+                    popNandPush(2, primitiveEq(vm.stackValue(1), vm.stackValue(0)) ? vm.trueObj : vm.falseObj); // ==
                     break;
                 case 112:
                     popNandPush(1, SqueakVM.smallFromInt(image.spaceLeft())); // bytesLeft
@@ -530,10 +534,28 @@ class SqueakPrimitiveHandler {
                 case 162:
                     popNandPush(3, fileSystemPrimitives.lookupEntryInIndex(argCount)); //path delimiter
                     break;
+                case 177:
+                    popNandPush(1, primitiveAllInstances(stackNonInteger(0))); // Class.allInstances
+                    break;
 
                 case 230:
                     primitiveYield(argCount); //yield for 10ms
                     break;
+                case 250:
+                    vm.profiler().clear(); // clearProfile
+                    break;
+                case 251:
+                    popNandPush(argCount + 1, primitiveDumpProfile(argCount)); // dumpProfile
+                    break;
+                case 252:
+                    vm.profiler().start(); // startProfiling
+                    break;
+                case 253:
+                    vm.profiler().stop(); // stopProfiling
+                    break;
+                case 254:
+                    popNandPush(argCount + 1, primitiveHeapHistogram(argCount)); // heapHistogram
+                    break;
                 default:
                     return false;
             }
@@ -554,13 +576,31 @@ class SqueakPrimitiveHandler {
      * ^nil "indicates error writing image file"
      */
     private void primitiveSnapshot() {
-        System.out.println("Saving the image");
+        //As the C VM does, the saved image resumes with true, and this one with false
+        Object receiver = vm.pop();
+        vm.push(vm.trueObj);
+        vm.storeContextRegisters();
+        SqueakObject sched = vm.getSpecialObject(Squeak.splOb_SchedulerAssociation).getPointerNI(Squeak.Assn_value);
+        SqueakObject activeProc = sched.getPointerNI(Squeak.ProcSched_activeProcess);
+        Object suspendedContext = activeProc.getPointer(Squeak.Proc_suspendedContext);
+        activeProc.setPointer(Squeak.Proc_suspendedContext, vm.activeContext);
+        File imageFile = vm.image.imageFile();
+        System.out.println("Saving the image to " + imageFile);
         try {
-            vm.image.save(new File("/tmp/image.gz"));
+            if (SqueakConfig.DELTA_SNAPSHOTS)
+                vm.image.saveIncrementally(imageFile);
+            else if (SqueakConfig.BACKGROUND_SNAPSHOT)
+                vm.image.saveInBackground(imageFile);
+            else
+                vm.image.save(imageFile);
         } catch (IOException e) {
             e.printStackTrace();
+            vm.popNandPush(1, receiver);
             throw PrimitiveFailed;
+        } finally {
+            activeProc.setPointer(Squeak.Proc_suspendedContext, suspendedContext);
         }
+        vm.popNandPush(1, vm.falseObj);
     }
 
     /**
@@ -580,6 +620,53 @@ class SqueakPrimitiveHandler {
         throw PrimitiveFailed;
     }
 
+    /**
+     * Primitive 251
+     * Write the profiler's samples so far in collapsed stack format (see
+     * SamplingProfiler) to the file named by the argument, or with no
+     * argument to the file of -Djsqueak.profile, else "jsqueak.profile".
+     * Answers the number of samples written.
+     */
+    private Object primitiveDumpProfile(int argCount) {
+        String fileName;
+        if (argCount == 0)
+            fileName = SqueakConfig.PROFILE_FILE != null ? SqueakConfig.PROFILE_FILE : "jsqueak.profile";
+        else if (argCount == 1)
+            fileName = stackNonInteger(0).asString();
+        else
+            throw PrimitiveFailed;
+        try {
+            vm.profiler().write(fileName);
+        } catch (IOException e) {
+            throw PrimitiveFailed;
+        }
+        return SqueakVM.smallFromInt((int) Math.min(vm.profiler().getSampleCount(), SqueakVM.maxSmallInt));
+    }
+
+    /**
+     * Primitive 254
+     * Write a histogram of the live objects by class, with their shallow and
+     * retained sizes, as CSV (see HeapHistogram) to the file named by the
+     * argument, or with no argument to "jsqueak-heap.csv".  Answers the number
+     * of classes written.
+     */
+    private Object primitiveHeapHistogram(int argCount) {
+        String fileName;
+        if (argCount == 0)
+            fileName = "jsqueak-heap.csv";
+        else if (argCount == 1)
+            fileName = stackNonInteger(0).asString();
+        else
+            throw PrimitiveFailed;
+        HeapHistogram histogram = image.heapHistogram(vm.activeContext);
+        try {
+            histogram.write(fileName);
+        } catch (IOException e) {
+            throw PrimitiveFailed;
+        }
+        return SqueakVM.smallFromInt(histogram.rows().size());
+    }
+
     /**
      * SystemDictionary>>vmPath.
      * Primitive 142.
@@ -684,7 +771,7 @@ class SqueakPrimitiveHandler {
         if (!isA(stackVal, Squeak.splOb_ClassLargePositiveInteger))
             throw PrimitiveFailed;
 
-        byte[] bytes = (byte[]) ((SqueakObject) stackVal).bits;
+        byte[] bytes = (byte[]) ((SqueakObject) stackVal).getBits();
         int value = 0;
         for (int i = 0; i < 4; i++)
             value = value + ((bytes[i] & 255) << (8 * i));
@@ -710,7 +797,7 @@ class SqueakPrimitiveHandler {
         }
         SqueakObject lgIntClass = (SqueakObject) vm.specialObjects[Squeak.splOb_ClassLargePositiveInteger];
         SqueakObject lgIntObj = vm.instantiateClass(lgIntClass, 4);
-        byte[] bytes = (byte[]) lgIntObj.bits;
+        byte[] bytes = (byte[]) lgIntObj.getBits();
         for (int i = 0; i < 4; i++)
             bytes[i] = (byte) ((pos32Val >>> (8 * i)) & 255);
         return lgIntObj;
@@ -815,7 +902,7 @@ class SqueakPrimitiveHandler {
     SqueakObject makeStString(String javaString) {
         byte[] byteString = javaString.getBytes();
         SqueakObject stString = vm.instantiateClass((SqueakObject) vm.specialObjects[Squeak.splOb_ClassString], javaString.length());
-        System.arraycopy(byteString, 0, stString.bits, 0, byteString.length);
+        System.arraycopy(byteString, 0, stString.getBits(), 0, byteString.length);
         return stString;
     }
 
@@ -865,12 +952,12 @@ class SqueakPrimitiveHandler {
             return array.pointers[index - 1 + info.ivarOffset];
         if (array.format < 8)   // words...
         {
-            int value = ((int[]) array.bits)[index - 1];
+            int value = ((int[]) array.getBits())[index - 1];
             return pos32BitIntFor(value);
         }
         if (array.format < 12)  // bytes...
         {
-            int value = (((byte[]) array.bits)[index - 1]) & 0xFF;
+            int value = (((byte[]) array.getBits())[index - 1]) & 0xFF;
             if (info.convertChars)
                 return charFromInt(value);
             else
@@ -881,7 +968,7 @@ class SqueakPrimitiveHandler {
         if (index - 1 - offset < 0) //reading lits as bytes
             throw PrimitiveFailed;
 
-        return SqueakVM.smallFromInt((((byte[]) array.bits)[index - 1 - offset]) & 0xFF);
+        return SqueakVM.smallFromInt((((byte[]) array.getBits())[index - 1 - offset]) & 0xFF);
     }
 
     SqueakObject charFromInt(int ascii) {
@@ -904,6 +991,19 @@ class SqueakPrimitiveHandler {
                 throw PrimitiveFailed;
         } else {
             // slow entry installs in cache if appropriate
+            if (array instanceof SqueakFloat) {
+                // the other half of the Float hack in primitiveAt
+                long floatBits = Double.doubleToRawLongBits(array.getFloatBits());
+                long word = stackPos32BitValue(0) & 0xFFFFFFFFL;
+                if (index == 1)
+                    floatBits = (floatBits & 0xFFFFFFFFL) | (word << 32);
+                else if (index == 2)
+                    floatBits = (floatBits & 0xFFFFFFFF00000000L) | word;
+                else
+                    throw PrimitiveFailed;
+                array.setFloatBits(Double.longBitsToDouble(floatBits));
+                return vm.stackValue(0);
+            }
             info = makeCacheInfo(atPutCache, vm.specialSelectors[34], array, convertChars, includeInstVars);
         }
         if (index < 1 || index > info.size)
@@ -925,7 +1025,7 @@ class SqueakPrimitiveHandler {
             // words...
             intToPut = stackPos32BitValue(0);
 
-            ((int[]) array.bits)[index - 1] = intToPut;
+            ((int[]) array.getBits())[index - 1] = intToPut;
             return objToPut;
         }
         // bytes...
@@ -953,9 +1053,9 @@ class SqueakPrimitiveHandler {
         if (intToPut < 0 || intToPut > 255)
             throw PrimitiveFailed;
 
-        if (array.format < 8) {
+        if (array.format < 12) {
             // bytes...
-            ((byte[]) array.bits)[index - 1] = (byte) intToPut;
+            ((byte[]) array.getBits())[index - 1] = (byte) intToPut;
             return objToPut;
         }
         // methods (format>=12) must simulate Squeak's method indexing
@@ -963,7 +1063,8 @@ class SqueakPrimitiveHandler {
         if (index - 1 - offset < 0)
             throw PrimitiveFailed;   //writing lits as bytes 
 
-        ((byte[]) array.bits)[index - 1 - offset] = (byte) intToPut;
+        ((byte[]) array.getBits())[index - 1 - offset] = (byte) intToPut;
+        ((SqueakMethod) array).methodFlushDecoded();
         return objToPut;
     }
 
@@ -1022,7 +1123,9 @@ class SqueakPrimitiveHandler {
             totalLength = dst.bitsSize();
             if ((dstPos < 0) || (dstPos + count) > totalLength)  //would go out of bounds
                 throw PrimitiveFailed;
-            System.arraycopy(src.bits, srcPos, dst.bits, dstPos, count);
+            System.arraycopy(src.getBits(), srcPos, dst.getBits(), dstPos, count);
+            if (dstFmt >= 12)
+                ((SqueakMethod) dst).methodFlushDecoded();
             return dst;
         }
     }
@@ -1075,9 +1178,16 @@ class SqueakPrimitiveHandler {
             // ctxt is itself a block; get the context for its enclosing method
             homeCtxt = homeCtxt.getPointerNI(Squeak.BlockContext_home);
         }
+        return newBlockContext(homeCtxt, sqArgCount, vm.pc);
+    }
+
+    /**
+     * A BlockContext in homeCtxt for the block after the blockCopy: send at pc.
+     */
+    SqueakObject newBlockContext(SqueakObject homeCtxt, Object sqArgCount, int pc) {
         int blockSize = homeCtxt.pointersSize() - homeCtxt.instSize(); //can use a const for instSize
         SqueakObject newBlock = vm.instantiateClass(((SqueakObject) vm.specialObjects[Squeak.splOb_ClassBlockContext]), blockSize);
-        Integer initialPC = vm.encodeSqueakPC(vm.pc + 2, vm.method); //*** check this...
+        Integer initialPC = vm.encodeSqueakPC(pc + 2, vm.method); //*** check this...
         newBlock.setPointer(Squeak.BlockContext_initialIP, initialPC);
         newBlock.setPointer(Squeak.Context_instructionPointer, initialPC);// claim not needed; value will set it
         newBlock.setPointer(Squeak.Context_stackPointer, SqueakVM.smallFromInt(0));
@@ -1103,7 +1213,7 @@ class SqueakPrimitiveHandler {
         System.arraycopy((Object) vm.activeContext.pointers, vm.sp - argCount + 1, (Object) block.pointers, Squeak.Context_tempFrameStart, argCount);
         Integer initialIP = block.getPointerI(Squeak.BlockContext_initialIP);
         block.setPointer(Squeak.Context_instructionPointer, initialIP);
-        block.setPointer(Squeak.Context_stackPointer, new Integer(argCount));
+        block.setPointer(Squeak.Context_stackPointer, SqueakVM.smallFromInt(argCount));
         block.setPointer(Squeak.BlockContext_caller, vm.activeContext);
         vm.popN(argCount + 1);
         vm.newActiveContext(block);
@@ -1114,12 +1224,12 @@ class SqueakPrimitiveHandler {
         if (SqueakVM.isSmallInt(rcvr))
             throw PrimitiveFailed;
 
-        return new Integer(((SqueakObject) rcvr).hash);
+        return SqueakVM.smallFromInt(((SqueakObject) rcvr).hash);
     }
 
     private Object setLowSpaceThreshold() {
         int nBytes = stackInteger(0);
-        vm.lowSpaceThreshold = nBytes;
+        vm.setLowSpaceThreshold(nBytes);
         return vm.stackValue(1);
     }
 
@@ -1300,6 +1410,7 @@ class SqueakPrimitiveHandler {
             vm.specialObjects[Squeak.splOb_TheTimerSemaphore] = vm.nilObj;
             vm.nextWakeupTick = 0;
         }
+        vm.scheduleWakeup();
         return rcvr;
     }
 
@@ -1319,6 +1430,8 @@ class SqueakPrimitiveHandler {
             throw PrimitiveFailed;
         vm.specialObjects[Squeak.splOb_TheDisplay] = displayObj;
         displayBitmap = disp.bits;
+        if (batchMode)
+            return; //draw into the Form's bits only
         boolean remap = theDisplay != null;
         if (remap) {
             Dimension requestedExtent = new Dimension(disp.width, disp.height);
@@ -1331,7 +1444,7 @@ class SqueakPrimitiveHandler {
             theDisplay.getFrame().addWindowListener(new WindowAdapter() {
                                                         public void windowClosing(WindowEvent evt) {
                                                             // TODO ask before shutdown
-                                                            // FIXME at least lock out quitting until concurrent image save has finished
+                                                            // exiting waits for a background image save to finish
                                                             theDisplay.exit();
                                                         }
                                                     }
@@ -1342,6 +1455,24 @@ class SqueakPrimitiveHandler {
             theDisplay.open();
     }
 
+    /**
+     * Run without a Screen, and stop at errors instead of opening a debugger.
+     */
+    void setBatchMode(boolean batch) {
+        batchMode = batch;
+    }
+
+    /**
+     * Primitive 19
+     * Debugger class>>openContext:label:contents: tries this before opening a
+     * notifier.  It fails, except in batch mode, where it ends the evaluation.
+     */
+    private boolean primitiveDebuggerTrap() {
+        if (!batchMode)
+            return false;
+        throw new BatchEvaluator.SmalltalkError(stackNonInteger(1).asString(), stackNonInteger(0).asString());
+    }
+
     private void beCursor(int argCount) {
         // For now we ignore the white outline form (maskObj)
         if (theDisplay == null)
@@ -1391,7 +1522,7 @@ class SqueakPrimitiveHandler {
         // TODO how to handle third-party interruptions?
         try {
             synchronized (SqueakVM.inputLock) {
-                while (!vm.screenEvent) SqueakVM.inputLock.wait(millis);
+                while (!vm.screenEvent && !vm.isInterruptCheckPending()) SqueakVM.inputLock.wait(millis);
             }
         } catch (InterruptedException e) {
         }
@@ -1407,7 +1538,7 @@ class SqueakPrimitiveHandler {
             theDisplay.redisplay(false, affectedArea);
         }
         if (bitbltTable.combinationRule == 22 || bitbltTable.combinationRule == 32)
-            vm.popNandPush(2, SqueakVM.smallFromInt(bitbltTable.bitCount));
+            vm.popNandPush(argCount + 1, SqueakVM.smallFromInt(bitbltTable.bitCount));
     }
 
     private void copyBitmapToByteArray(int[] words, byte[] bytes, Rectangle rect, int raster, int depth) {
@@ -1436,17 +1567,21 @@ class SqueakPrimitiveHandler {
     private SqueakObject primitiveMousePoint() {
         SqueakObject pointClass = (SqueakObject) vm.specialObjects[Squeak.splOb_ClassPoint];
         SqueakObject newPoint = vm.instantiateClass(pointClass, 0);
-        Point lastMouse = theDisplay.getLastMousePoint();
+        Point lastMouse = theDisplay != null ? theDisplay.getLastMousePoint() : new Point(0, 0);
         newPoint.setPointer(Squeak.Point_x, SqueakVM.smallFromInt(lastMouse.x));
         newPoint.setPointer(Squeak.Point_y, SqueakVM.smallFromInt(lastMouse.y));
         return newPoint;
     }
 
     private Integer primitiveMouseButtons() {
+        if (theDisplay == null)
+            return SqueakVM.smallFromInt(0);
         return SqueakVM.smallFromInt(theDisplay.getLastMouseButtonStatus());
     }
 
     private Object primitiveKbdNext() {
+        if (theDisplay == null)
+            return SqueakVM.smallFromInt(0);
         return SqueakVM.smallFromInt(theDisplay.keyboardNext());
     }
 
@@ -1458,7 +1593,6 @@ class SqueakPrimitiveHandler {
     }
 
     private SqueakObject primitiveArrayBecome(boolean doBothWays) {
-        // Should flush method cache
         SqueakObject rcvr = stackNonInteger(1);
         SqueakObject arg = stackNonInteger(0);
 
@@ -1488,6 +1622,13 @@ class SqueakPrimitiveHandler {
         return image.nextInstance(image.otIndexOfObject(priorInstance) + 1, sqClass);
     }
 
+    private SqueakObject primitiveAllInstances(SqueakObject sqClass) {
+        List<SqueakObject> instances = image.allInstances(sqClass);
+        SqueakObject array = vm.instantiateClass(Squeak.splOb_ClassArray, instances.size());
+        instances.toArray(array.pointers);
+        return array;
+    }
+
     private boolean primitiveScreenSize() {
         int width = 640;
         int height = 480;
@@ -24,7 +24,14 @@ THE SOFTWARE.
 package JSqueak;
 
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Daniel Ingalls
@@ -35,6 +42,19 @@ public class SqueakVM {
 
     public static final Object inputLock = new Object();
 
+    /**
+     * Thrown out of run() when a method context without a sender returns.
+     */
+    static class TopLevelReturn extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        final Object value;
+
+        TopLevelReturn(Object value) {
+            super(null, null, false, false);
+            this.value = value;
+        }
+    }
+
     public static SqueakVM INSTANCE = null;
 
     // static state:
@@ -53,6 +73,10 @@ public class SqueakVM {
     int sp;
     SqueakObject method = nilObj;
     byte[] methodBytes;
+    int[] methodCode; //methodBytes predecoded, only for SqueakConfig.DECODED_DISPATCH
+    DecodedMethod methodDecoded; //where methodCode came from
+    private SamplingProfiler profiler;
+    private final BytecodeNGrams nGrams = SqueakConfig.NGRAM_LENGTH > 0 ? new BytecodeNGrams(SqueakConfig.NGRAM_LENGTH) : null;
     int pc;
     boolean success;
     private SqueakObject freeContexts;
@@ -63,10 +87,13 @@ public class SqueakVM {
 
     boolean screenEvent = false;
 
-    int lowSpaceThreshold;
-    private int interruptCheckCounter;
-    private int interruptCheckCounterFeedBackReset;
-    private int interruptChecksEveryNms;
+    int lowSpaceThreshold; //0 when not checking, as after signalling low space
+    private boolean signalLowSpace;
+    private volatile boolean checkLowSpace; //set from the JVM's GC notifications
+    // set by the ticker (and anyone else with something to signal) when checkForInterrupts has work to do
+    volatile boolean interruptCheckPending;
+    private ScheduledExecutorService ticker;
+    private volatile ScheduledFuture<?> wakeupTask; //written under the lock of scheduleWakeup
     private int nextPollTick;
     int nextWakeupTick;
     private int lastTick;
@@ -84,15 +111,29 @@ public class SqueakVM {
     public static int nonSmallInt = -0x50000000; //non-small and neg(so non pos32 too)
     public static int millisecondClockMask = maxSmallInt >> 1; //keeps ms logic in small int range
 
-    public static int minCachedInt = -2000;
-    public static int maxCachedInt = 4000;
+    public static int minCachedInt = SqueakConfig.SMALL_INT_CACHE_MIN;
+    public static int maxCachedInt = SqueakConfig.SMALL_INT_CACHE_MAX;
 
     static Integer[] cachedInts; // reusable SmallIntegers save space, reduce GC traffic
 
+    // the most entries a Java array is sure to hold
+    static final int MAX_CACHED_INTS = Integer.MAX_VALUE - 8;
+
     static void initSmallIntegerCache() {
-        cachedInts = new Integer[maxCachedInt - minCachedInt + 1];
-        for (int i = minCachedInt; i <= maxCachedInt; i++)
-            cachedInts[i - minCachedInt] = new Integer(i);
+        //Slots are filled on first use, so a large range only costs the array
+        if (minCachedInt > maxCachedInt)
+            throw new IllegalArgumentException("SmallInteger cache range " + minCachedInt + ".." + maxCachedInt
+                    + " is empty; check -Djsqueak.smallIntCacheMin and -Djsqueak.smallIntCacheMax");
+        minCachedInt = Math.max(minCachedInt, minSmallInt);
+        maxCachedInt = Math.min(maxCachedInt, maxSmallInt);
+        long size = (long) maxCachedInt - minCachedInt + 1;
+        if (size > MAX_CACHED_INTS) {
+            maxCachedInt = minCachedInt + MAX_CACHED_INTS - 1;
+            System.err.println("SmallInteger cache clipped to " + minCachedInt + ".." + maxCachedInt
+                    + ", the most values an array holds");
+            size = MAX_CACHED_INTS;
+        }
+        cachedInts = new Integer[(int) size];
     }
 
     class MethodCacheEntry {
@@ -109,6 +150,12 @@ public class SqueakVM {
 
     MethodCacheEntry[] methodCache = new MethodCacheEntry[methodCacheSize];
 
+    int sendSiteEpoch; // bumped to invalidate all SendSites along with the whole method cache
+    private final Map<SqueakObject, SendSite.Group> sendSiteGroups = new WeakHashMap<>(); //by selector
+    private final Map<SqueakObject, SendSite.Group> sendSiteGroupsByMethod = new WeakHashMap<>(); //of sites caching it
+    long sendSiteHits;
+    long sendSiteMisses;
+
     void initMethodCache() {
         methodCache = new MethodCacheEntry[methodCacheSize];
         for (int i = 0; i < methodCacheSize; i++) {
@@ -132,16 +179,52 @@ public class SqueakVM {
         loadImageState();
         initVMState();
         loadInitialContext();
+        if (SqueakConfig.PROFILE_FILE != null)
+            startProfileOnExit(SqueakConfig.PROFILE_FILE);
+    }
+
+    /**
+     * The sampling profiler, created stopped on first use.
+     */
+    SamplingProfiler profiler() {
+        if (profiler == null)
+            profiler = new SamplingProfiler(this);
+        return profiler;
+    }
+
+    private void startProfileOnExit(String fileName) {
+        SamplingProfiler p = profiler();
+        p.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                p.write(fileName);
+                System.err.println(p.getSampleCount() + " profile samples written to " + fileName);
+            } catch (IOException e) {
+                System.err.println("Could not write profile to " + fileName + ": " + e);
+            }
+        }));
     }
 
-    void clearCaches() {
+    void clearCaches(boolean lookupsChanged) {
         // Some time store null above SP in contexts
         primHandler.clearAtCache();
-        clearMethodCache();
+        if (lookupsChanged)
+            clearMethodCache();
+        else
+            emptyMethodCache(); //only to let go of what it holds
         freeContexts = nilObj;
         freeLargeContexts = nilObj;
     }
 
+    /**
+     * Whether the VM keeps parts of obj in its registers, so that exchanging
+     * its contents with another object's would leave them stale.
+     */
+    boolean holdsBodyOf(SqueakObject obj) {
+        return obj == activeContext || obj == homeContext || obj == method
+                || obj.pointers == specialObjects || obj.pointers == specialSelectors;
+    }
+
     private void loadImageState() {
         SqueakObject specialObjectsArray = image.specialObjectsArray;
         specialObjects = specialObjectsArray.pointers;
@@ -157,9 +240,7 @@ public class SqueakVM {
     }
 
     private void initVMState() {
-        interruptCheckCounter = 0;
-        interruptCheckCounterFeedBackReset = 1000;
-        interruptChecksEveryNms = 3;
+        interruptCheckPending = false;
         nextPollTick = 0;
         nextWakeupTick = 0;
         lastTick = 0;
@@ -205,7 +286,13 @@ public class SqueakVM {
         }
         receiver = homeContext.getPointer(Squeak.Context_receiver);
         method = (SqueakObject) meth;
-        methodBytes = (byte[]) method.bits;
+        if (SqueakConfig.DECODED_DISPATCH) {
+            methodDecoded = ((SqueakMethod) method).methodDecoded();
+            methodBytes = methodDecoded.bytes;
+            methodCode = methodDecoded.entryCode();
+        } else {
+            methodBytes = (byte[]) method.getBits();
+        }
         pc = decodeSqueakPC(ctxt.getPointerI(Squeak.Context_instructionPointer), method);
         if (pc < -1)
             dumpStack();
@@ -245,13 +332,28 @@ public class SqueakVM {
     }
 
     public static Integer smallFromInt(int raw) {
-        if (raw >= minCachedInt && raw <= maxCachedInt)
-            return cachedInts[raw - minCachedInt];
+        if (raw >= minCachedInt && raw <= maxCachedInt) {
+            Integer cached = cachedInts[raw - minCachedInt];
+            return cached != null ? cached : fillCachedInt(raw);
+        }
         if (raw >= minSmallInt && raw <= maxSmallInt)
-            return new Integer(raw);
+            return Integer.valueOf(raw);
         return null;
     }
 
+    /**
+     * Fill the cache slot for raw under a lock, so that threads that miss it at
+     * once, such as those installing an image in parallel, all get the same
+     * Integer, and == stays true for equal SmallIntegers.  Reading a filled slot
+     * without the lock is safe, as an Integer's value is final.
+     */
+    private static synchronized Integer fillCachedInt(int raw) {
+        Integer cached = cachedInts[raw - minCachedInt];
+        if (cached == null)
+            cachedInts[raw - minCachedInt] = cached = Integer.valueOf(raw);
+        return cached;
+    }
+
     public static boolean isSmallInt(Object obj) {
         return obj instanceof Integer;
     }
@@ -314,6 +416,10 @@ public class SqueakVM {
     }
 
     public void run() throws java.io.IOException {
+        if (SqueakConfig.DECODED_DISPATCH) {
+            runDecoded();
+            return;
+        }
         int b, b2;
         while (true) {
             //...Here's the basic evaluator loop...'
@@ -544,8 +650,7 @@ public class SqueakVM {
                     break;   // dup
                 // push thisContext
                 case 137:
-                    push(activeContext);
-                    reclaimableContextCount = 0;
+                    pushThisContext();
                     break;
 
                 //Unused...
@@ -763,12 +868,290 @@ public class SqueakVM {
         }
     }
 
+    /**
+     * The evaluator loop for SqueakConfig.DECODED_DISPATCH.  It implements the same
+     * bytecodes as run(), but takes them from methodCode with their operands already
+     * extracted (see DecodedMethod).
+     */
+    private void runDecoded() {
+        int insn, a;
+        while (true) {
+            insn = methodCode[pc + 1];
+            if (SqueakConfig.NGRAM_LENGTH > 0)
+                nGrams.record(method, pc + 1, methodBytes);
+            pc += 1 + ((insn >>> 8) & 3); //step over the bytecode and its extension bytes at once
+            a = (insn >>> 10) & 0x3FF;
+            switch (insn & 0xFF) {
+                case DecodedMethod.OP_PUSH_RCVR_VAR:
+                    push(((SqueakObject) receiver).getPointer(a));
+                    break;
+                case DecodedMethod.OP_PUSH_TEMP:
+                    push(homeContext.getPointer(a));
+                    break;
+                case DecodedMethod.OP_PUSH_LIT:
+                    push(method.methodGetLiteral(a));
+                    break;
+                case DecodedMethod.OP_PUSH_LIT_VAR:
+                    push(((SqueakObject) method.methodGetLiteral(a)).getPointer(Squeak.Assn_value));
+                    break;
+                case DecodedMethod.OP_STORE_POP_RCVR_VAR:
+                    ((SqueakObject) receiver).setPointer(a, pop());
+                    break;
+                case DecodedMethod.OP_STORE_POP_TEMP:
+                    homeContext.setPointer(a, pop());
+                    break;
+                case DecodedMethod.OP_STORE_POP_LIT_VAR:
+                    ((SqueakObject) method.methodGetLiteral(a)).setPointer(Squeak.Assn_value, pop());
+                    break;
+                case DecodedMethod.OP_STORE_RCVR_VAR:
+                    ((SqueakObject) receiver).setPointer(a, top());
+                    break;
+                case DecodedMethod.OP_STORE_TEMP:
+                    homeContext.setPointer(a, top());
+                    break;
+                case DecodedMethod.OP_STORE_LIT_VAR:
+                    ((SqueakObject) method.methodGetLiteral(a)).setPointer(Squeak.Assn_value, top());
+                    break;
+                case DecodedMethod.OP_PUSH_RCVR:
+                    push(receiver);
+                    break;
+                case DecodedMethod.OP_PUSH_TRUE:
+                    push(trueObj);
+                    break;
+                case DecodedMethod.OP_PUSH_FALSE:
+                    push(falseObj);
+                    break;
+                case DecodedMethod.OP_PUSH_NIL:
+                    push(nilObj);
+                    break;
+                case DecodedMethod.OP_PUSH_INT:
+                    push(smallFromInt(insn >> 20));
+                    break;
+                case DecodedMethod.OP_RETURN_RCVR:
+                    doReturn(receiver, homeContext.getPointerNI(Squeak.Context_sender));
+                    break;
+                case DecodedMethod.OP_RETURN_TRUE:
+                    doReturn(trueObj, homeContext.getPointerNI(Squeak.Context_sender));
+                    break;
+                case DecodedMethod.OP_RETURN_FALSE:
+                    doReturn(falseObj, homeContext.getPointerNI(Squeak.Context_sender));
+                    break;
+                case DecodedMethod.OP_RETURN_NIL:
+                    doReturn(nilObj, homeContext.getPointerNI(Squeak.Context_sender));
+                    break;
+                case DecodedMethod.OP_RETURN_TOP:
+                    doReturn(pop(), homeContext.getPointerNI(Squeak.Context_sender));
+                    break;
+                case DecodedMethod.OP_BLOCK_RETURN:
+                    doReturn(pop(), activeContext.getPointerNI(Squeak.BlockContext_caller));
+                    break;
+                case DecodedMethod.OP_POP:
+                    pop();
+                    break;
+                case DecodedMethod.OP_DUP:
+                    push(top());
+                    break;
+                case DecodedMethod.OP_PUSH_CONTEXT:
+                    pushThisContext();
+                    break;
+                case DecodedMethod.OP_SEND:
+                    send(method.methodGetSelector(a), insn >> 20, false);
+                    break;
+                case DecodedMethod.OP_SUPER_SEND:
+                    send(method.methodGetSelector(a), insn >> 20, true);
+                    break;
+                case DecodedMethod.OP_JUMP:
+                    pc += insn >> 20;
+                    break;
+                case DecodedMethod.OP_JUMP_BACK:
+                    pc += insn >> 20;
+                    if (SqueakConfig.JIT && methodDecoded.countHotness(method))
+                        methodCode = methodDecoded.jitEntries; //continue the loop in compiled code
+                    checkForInterrupts();
+                    break;
+                case DecodedMethod.OP_JUMP_IF_TRUE:
+                    jumpif(true, insn >> 20);
+                    break;
+                case DecodedMethod.OP_JUMP_IF_FALSE:
+                    jumpif(false, insn >> 20);
+                    break;
+                case DecodedMethod.OP_ADD:
+                    success = true;
+                    if (!pop2AndPushIntResult(stackInteger(1) + stackInteger(0)))
+                        sendSpecial(0);
+                    break;
+                case DecodedMethod.OP_SUBTRACT:
+                    success = true;
+                    if (!pop2AndPushIntResult(stackInteger(1) - stackInteger(0)))
+                        sendSpecial(1);
+                    break;
+                case DecodedMethod.OP_LESS:
+                    success = true;
+                    if (!pushBoolOrJump(stackInteger(1) < stackInteger(0))) sendSpecial(2);
+                    break;
+                case DecodedMethod.OP_GREATER:
+                    success = true;
+                    if (!pushBoolOrJump(stackInteger(1) > stackInteger(0))) sendSpecial(3);
+                    break;
+                case DecodedMethod.OP_LESS_OR_EQUAL:
+                    success = true;
+                    if (!pushBoolOrJump(stackInteger(1) <= stackInteger(0))) sendSpecial(4);
+                    break;
+                case DecodedMethod.OP_GREATER_OR_EQUAL:
+                    success = true;
+                    if (!pushBoolOrJump(stackInteger(1) >= stackInteger(0))) sendSpecial(5);
+                    break;
+                case DecodedMethod.OP_EQUAL:
+                    success = true;
+                    if (!pushBoolOrJump(stackInteger(1) == stackInteger(0))) sendSpecial(6);
+                    break;
+                case DecodedMethod.OP_NOT_EQUAL:
+                    success = true;
+                    if (!pushBoolOrJump(stackInteger(1) != stackInteger(0))) sendSpecial(7);
+                    break;
+                case DecodedMethod.OP_MULTIPLY:
+                    success = true;
+                    if (!pop2AndPushIntResult(safeMultiply(stackInteger(1), stackInteger(0))))
+                        sendSpecial(8);
+                    break;
+                case DecodedMethod.OP_DIVIDE:
+                    success = true;
+                    if (!pop2AndPushIntResult(quickDivide(stackInteger(1), stackInteger(0))))
+                        sendSpecial(9);
+                    break;
+                case DecodedMethod.OP_MOD:
+                    success = true;
+                    if (!pop2AndPushIntResult(mod(stackInteger(1), stackInteger(0))))
+                        sendSpecial(10);
+                    break;
+                case DecodedMethod.OP_MAKE_POINT:
+                    success = true;
+                    if (!primHandler.primitiveMakePoint()) sendSpecial(11);
+                    break;
+                case DecodedMethod.OP_BIT_SHIFT:
+                    sendSpecial(12); //see run()
+                    break;
+                case DecodedMethod.OP_DIV:
+                    success = true;
+                    if (!pop2AndPushIntResult(div(stackInteger(1), stackInteger(0))))
+                        sendSpecial(13);
+                    break;
+                case DecodedMethod.OP_BIT_AND:
+                    success = true;
+                    if (!pop2AndPushIntResult(stackInteger(1) & stackInteger(0)))
+                        sendSpecial(14);
+                    break;
+                case DecodedMethod.OP_BIT_OR:
+                    success = true;
+                    if (!pop2AndPushIntResult(stackInteger(1) | stackInteger(0)))
+                        sendSpecial(15);
+                    break;
+                case DecodedMethod.OP_SPECIAL_SEND:
+                    if (!primHandler.quickSendOther(receiver, a))
+                        sendSpecial(a + 16);
+                    break;
+                case DecodedMethod.OP_DOUBLE_EXTENDED:
+                    doubleExtendedDoAnything(a);
+                    break;
+                case DecodedMethod.OP_COMPILED:
+                    methodDecoded.jitCode.run(this);
+                    break;
+                case DecodedMethod.OP_PUSH_TEMP_TEMP:
+                    push(homeContext.getPointer(a));
+                    push(homeContext.getPointer(insn >> 20));
+                    break;
+                case DecodedMethod.OP_STORE_POP_TEMP_PUSH_TEMP:
+                    homeContext.setPointer(a, pop());
+                    push(homeContext.getPointer(insn >> 20));
+                    break;
+                case DecodedMethod.OP_PUSH_PUSH_ARITH:
+                    push((a & 0x7F) == 0 ? receiver : homeContext.getPointer(a & 0x7F));
+                    push((insn >> 20) < Squeak.Context_tempFrameStart ? smallFromInt(insn >> 20) : homeContext.getPointer(insn >> 20));
+                    quickArithmetic(a >> 7);
+                    break;
+                case DecodedMethod.OP_NONO:
+                    nono();
+                    break;
+            }
+        }
+    }
+
+    private void quickArithmetic(int lobits) {
+        //The arithmetic bytecodes 176..183, for superinstructions ending in one
+        success = true;
+        switch (lobits) {
+            case 0:
+                if (!pop2AndPushIntResult(stackInteger(1) + stackInteger(0)))
+                    sendSpecial(0);
+                break;
+            case 1:
+                if (!pop2AndPushIntResult(stackInteger(1) - stackInteger(0)))
+                    sendSpecial(1);
+                break;
+            case 2:
+                if (!pushBoolOrJump(stackInteger(1) < stackInteger(0))) sendSpecial(2);
+                break;
+            case 3:
+                if (!pushBoolOrJump(stackInteger(1) > stackInteger(0))) sendSpecial(3);
+                break;
+            case 4:
+                if (!pushBoolOrJump(stackInteger(1) <= stackInteger(0))) sendSpecial(4);
+                break;
+            case 5:
+                if (!pushBoolOrJump(stackInteger(1) >= stackInteger(0))) sendSpecial(5);
+                break;
+            case 6:
+                if (!pushBoolOrJump(stackInteger(1) == stackInteger(0))) sendSpecial(6);
+                break;
+            case 7:
+                if (!pushBoolOrJump(stackInteger(1) != stackInteger(0))) sendSpecial(7);
+                break;
+        }
+    }
+
+    private boolean pushBoolOrJump(boolean boolResult) {
+        //pushBoolAndPeek for runDecoded, where a conditional jump after the comparison is already decoded
+        if (!success)
+            return false;
+        popN(2);
+        int next = methodCode[pc + 1];
+        int op = next & 0xFF;
+        if (op == DecodedMethod.OP_JUMP_IF_FALSE || op == DecodedMethod.OP_JUMP_IF_TRUE) {
+            pc += 1 + ((next >>> 8) & 3);
+            if (boolResult == (op == DecodedMethod.OP_JUMP_IF_TRUE))
+                pc += next >> 20;
+            return true;
+        }
+        push(boolResult ? trueObj : falseObj);
+        return true;
+    }
+
+    void pushThisContext() {
+        push(activeContext);
+        //Once Smalltalk code holds a context, it may walk the whole sender chain,
+        //so none of the contexts now on the stack can be recycled.  The exception
+        //is [thisContext blockCopy: n] which only keeps the home context.
+        if (pc + 2 < methodBytes.length && methodBytes[pc + 2] == (byte) 200 && pushesSmallInt(methodBytes[pc + 1] & 0xFF))
+            markEscaped(homeContext); //blockCopy: will not fail
+        else
+            reclaimableContextCount = 0;
+    }
+
+    private boolean pushesSmallInt(int b) {
+        if (b >= 116 && b <= 119)
+            return true; //push -1..2
+        return b >= 32 && b < 64 && isSmallInt(method.methodGetLiteral(b & 0x1F));
+    }
+
     public void checkForInterrupts() {
         //Check for interrupts at sends and backward jumps
         SqueakObject sema;
         int now;
-        if (interruptCheckCounter-- > 0)
-            return; //only really check every 100 times or so
+        if (!interruptCheckPending)
+            return; //nothing to do until the ticker or an input source says so
+        interruptCheckPending = false;
+        if (profiler != null && profiler.samplePending)
+            profiler.sample();
         //Mask so same wrap as primitiveMillisecondClock
         now = (int) (System.currentTimeMillis() & (long) millisecondClockMask);
         if (now < lastTick) {
@@ -777,22 +1160,17 @@ public class SqueakVM {
             if (nextWakeupTick != 0)
                 nextWakeupTick = now + (nextWakeupTick - lastTick);
         }
-        //Feedback logic attempts to keep interrupt response around 3ms...
-        if ((now - lastTick) < interruptChecksEveryNms)  //wrapping is not a concern
-        {
-            interruptCheckCounterFeedBackReset += 10;
-        } else {
-            if (interruptCheckCounterFeedBackReset <= 1000)
-                interruptCheckCounterFeedBackReset = 1000;
-            else
-                interruptCheckCounterFeedBackReset -= 12;
-        }
-        interruptCheckCounter = interruptCheckCounterFeedBackReset; //reset the interrupt check counter"
         lastTick = now; //used to detect wraparound of millisecond clock
-        //  if (signalLowSpace) {
-        //            signalLowSpace= false; //reset flag
-        //            sema= getSpecialObject(Squeak.splOb_TheLowSpaceSemaphore);
-        //            if (sema != nilObj) synchronousSignal(sema); }
+        if (checkLowSpace) {
+            checkLowSpace = false;
+            image.checkLowSpace(); //may signal low space, just below
+        }
+        if (signalLowSpace) {
+            signalLowSpace = false; //reset flag
+            sema = getSpecialObject(Squeak.splOb_TheLowSpaceSemaphore);
+            if (sema != nilObj)
+                primHandler.synchronousSignal(sema);
+        }
         //  if (now >= nextPollTick) {
         //            ioProcessEvents(); //sets interruptPending if interrupt key pressed
         //            nextPollTick= now + 500; } //msecs to wait before next call to ioProcessEvents"
@@ -807,7 +1185,8 @@ public class SqueakVM {
             sema = getSpecialObject(Squeak.splOb_TheTimerSemaphore);
             if (sema != nilObj)
                 primHandler.synchronousSignal(sema);
-        }
+        } else if (nextWakeupTick != 0 && !isWakeupArmed())
+            scheduleWakeup(); //the ticker fired early, e.g. because the clock wrapped
         //  if (pendingFinalizationSignals > 0) { //signal any pending finalizations
         //            sema= getSpecialObject(Squeak.splOb_ThefinalizationSemaphore);
         //            pendingFinalizationSignals= 0;
@@ -816,6 +1195,54 @@ public class SqueakVM {
         //            signalExternalSemaphores(); }  //signal all semaphores in semaphoresToSignal
     }
 
+    /**
+     * Make the interpreter run checkForInterrupts at its next send or backward
+     * jump, and wake it if it is idling in primitiveYield.  Safe to call from any thread.
+     */
+    public void requestInterruptCheck() {
+        interruptCheckPending = true;
+        synchronized (inputLock) {
+            inputLock.notifyAll();
+        }
+    }
+
+    boolean isInterruptCheckPending() {
+        return interruptCheckPending;
+    }
+
+    /**
+     * Whether the ticker still has a wakeup to deliver.  Only rearming it once it
+     * has fired keeps an early wake from cancelling and rescheduling the task at
+     * every check until the deadline.
+     */
+    private boolean isWakeupArmed() {
+        ScheduledFuture<?> task = wakeupTask;
+        return task != null && !task.isDone();
+    }
+
+    /**
+     * (Re)arm the ticker to request an interrupt check at nextWakeupTick,
+     * or disarm it if there is no wakeup pending.
+     */
+    synchronized void scheduleWakeup() {
+        if (wakeupTask != null) {
+            wakeupTask.cancel(false);
+            wakeupTask = null;
+        }
+        if (nextWakeupTick == 0)
+            return;
+        if (ticker == null) {
+            ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "JSqueak ticker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        int now = (int) (System.currentTimeMillis() & (long) millisecondClockMask);
+        long delay = Math.max(0, nextWakeupTick - now);
+        wakeupTask = ticker.schedule(this::requestInterruptCheck, delay, TimeUnit.MILLISECONDS);
+    }
+
     private void jumpif(boolean condition, int delta) {
         Object top = pop();
         if (top == (condition ? trueObj : falseObj)) {
@@ -825,7 +1252,7 @@ public class SqueakVM {
         if (top == (condition ? falseObj : trueObj))
             return;
         push(top); //Uh-oh it's not even a boolean (that we know of ;-).  Restore stack...
-        send((SqueakObject) specialObjects[Squeak.splOb_SelectorMustBeBoolean], 1, false);
+        send((SqueakObject) specialObjects[Squeak.splOb_SelectorMustBeBoolean], 1, false, false);
     }
 
     public void sendSpecial(int lobits) {
@@ -919,8 +1346,11 @@ public class SqueakVM {
     }
 
     public void doReturn(Object returnValue, SqueakObject targetContext) {
-        if (targetContext == nilObj)
+        if (targetContext == nilObj) {
+            if (activeContext == homeContext && activeContext.getPointer(Squeak.Context_sender) == nilObj)
+                throw new TopLevelReturn(returnValue); //e.g. a BatchEvaluator doit
             cannotReturn();
+        }
         if (targetContext.getPointer(Squeak.Context_instructionPointer) == nilObj)
             cannotReturn();
         SqueakObject thisContext = activeContext;
@@ -938,7 +1368,8 @@ public class SqueakVM {
             nextContext = thisContext.getPointerNI(Squeak.Context_sender);
             thisContext.setPointer(Squeak.Context_sender, nilObj);
             thisContext.setPointer(Squeak.Context_instructionPointer, nilObj);
-            if (reclaimableContextCount > 0) {
+            if (reclaimableContextCount > 0 && isMethodContext(thisContext)) {
+                //Block contexts were not counted when activated
                 reclaimableContextCount--;
                 recycleIfPossible(thisContext);
             }
@@ -1064,6 +1495,14 @@ public class SqueakVM {
     }
 
     public void send(SqueakObject selector, int argCount, boolean doSuper) {
+        send(selector, argCount, doSuper, SqueakConfig.INLINE_CACHES);
+    }
+
+    /**
+     * Send selector, caching the lookup at the SendSite of the instruction at pc
+     * if atSite.  Sends the VM makes itself, such as #mustBeBoolean, have no site.
+     */
+    public void send(SqueakObject selector, int argCount, boolean doSuper, boolean atSite) {
         SqueakObject newMethod;
         int primIndex;
         Object newRcvr = stackValue(argCount);
@@ -1078,9 +1517,29 @@ public class SqueakVM {
             lookupClass = lookupClass.getPointerNI(Squeak.Class_superclass);
         }
         int priorSP = sp; // to check if DNU changes argCount
-        MethodCacheEntry entry = findSelectorInClass(selector, argCount, lookupClass);
-        newMethod = entry.method;
-        primIndex = entry.primIndex;
+        SendSite site = null;
+        int cached = -1;
+        if (atSite) {
+            site = ((SqueakMethod) method).methodSendSite(pc);
+            site.validate(selector, this);
+            cached = site.indexOf(lookupClass);
+        }
+        if (cached >= 0) {
+            sendSiteHits++;
+            newMethod = site.methods[cached];
+            primIndex = site.primIndexes[cached];
+        } else {
+            MethodCacheEntry entry = findSelectorInClass(selector, argCount, lookupClass);
+            newMethod = entry.method;
+            primIndex = entry.primIndex;
+            if (site != null) {
+                sendSiteMisses++;
+                if (sp == priorSP && !site.megamorphic) { // not a doesNotUnderstand:
+                    site.add(lookupClass, newMethod, primIndex);
+                    sendSiteCached(site, newMethod);
+                }
+            }
+        }
         if (primIndex > 0) {
             //note details for verification of at/atput primitives
             verifyAtSelector = selector;
@@ -1191,7 +1650,15 @@ public class SqueakVM {
         //      Following are more efficient than fetchContextRegisters in newActiveContext:
         homeContext = newContext;
         method = newMethod;
-        methodBytes = (byte[]) method.bits;
+        if (SqueakConfig.DECODED_DISPATCH) {
+            methodDecoded = ((SqueakMethod) method).methodDecoded();
+            if (SqueakConfig.JIT)
+                methodDecoded.countHotness(method);
+            methodBytes = methodDecoded.bytes;
+            methodCode = methodDecoded.entryCode();
+        } else {
+            methodBytes = (byte[]) method.getBits();
+        }
         pc = newPC;
         sp = newSP;
         storeContextRegisters(); // not really necessary, I claim
@@ -1298,8 +1765,13 @@ public class SqueakVM {
         return false;
     }
 
+    static void markEscaped(SqueakObject ctxt) {
+        if (ctxt instanceof SqueakContext)
+            ((SqueakContext) ctxt).contextEscaped = true;
+    }
+
     public void recycleIfPossible(SqueakObject ctxt) {
-        if (!isMethodContext(ctxt))
+        if (!(ctxt instanceof SqueakContext) || !isMethodContext(ctxt) || ((SqueakContext) ctxt).contextEscaped)
             return;
         //if (isContext(ctxt)) return; //Defeats recycling of contexts
         if (ctxt.pointersSize() == (Squeak.Context_tempFrameStart + Squeak.Context_smallFrameSize)) {
@@ -1350,20 +1822,75 @@ public class SqueakVM {
 
     // FIXME: remove this method
     public SqueakObject instantiateClass(SqueakObject theClass, int indexableSize) {
-        return new SqueakObject(image, theClass, indexableSize, nilObj);
+        SqueakObject newObj;
+        if (theClass == specialObjects[Squeak.splOb_ClassMethodContext])
+            newObj = new SqueakContext(image, theClass, indexableSize, nilObj);
+        else if (theClass == specialObjects[Squeak.splOb_ClassFloat])
+            newObj = new SqueakFloat(image, theClass);
+        else
+            newObj = SqueakObject.newInstance(image, theClass, indexableSize, nilObj);
+        image.allocated(newObj);
+        return newObj;
+    }
+
+    /**
+     * Signal the low space semaphore at the next interrupt check, and, as the C VM
+     * does, stop checking until the image sets lowSpaceThreshold again.
+     */
+    void signalLowSpace() {
+        signalLowSpace = true;
+        lowSpaceThreshold = 0;
+        interruptCheckPending = true;
+    }
+
+    /**
+     * Have the image check for low space at the next interrupt check; called
+     * when a collection left less than lowSpaceThreshold free (see
+     * SqueakImage.armLowSpaceCheck()).
+     */
+    void requestLowSpaceCheck() {
+        checkLowSpace = true;
+        interruptCheckPending = true;
+    }
+
+    void setLowSpaceThreshold(int nBytes) {
+        lowSpaceThreshold = nBytes;
+        image.armLowSpaceCheck();
     }
 
     public boolean clearMethodCache() {
         //clear method cache entirely (prim 89)
+        sendSiteEpoch++;
+        emptyMethodCache();
+        return true;
+    }
+
+    private void emptyMethodCache() {
         for (int i = 0; i < methodCacheSize; i++) {
             methodCache[i].selector = null;   // mark it free
             methodCache[i].method = null;     // release the method
         }
-        return true;
+    }
+
+    SendSite.Group sendSiteGroup(SqueakObject selector) {
+        SendSite.Group group = sendSiteGroups.get(selector);
+        if (group == null)
+            sendSiteGroups.put(selector, group = new SendSite.Group());
+        return group;
+    }
+
+    private void sendSiteCached(SendSite site, SqueakObject newMethod) {
+        //remember which sites to invalidate when newMethod is flushed
+        SendSite.Group group = sendSiteGroupsByMethod.putIfAbsent(newMethod, site.group);
+        if (group != null && group != site.group)
+            sendSiteGroupsByMethod.put(newMethod, SendSite.SHARED);
     }
 
     public boolean flushMethodCacheForSelector(SqueakObject selector) {
         //clear cache entries for selector (prim 119)
+        SendSite.Group group = sendSiteGroups.get(selector);
+        if (group != null)
+            group.epoch++;
         for (int i = 0; i < methodCacheSize; i++) {
             if (methodCache[i].selector == selector) {
                 methodCache[i].selector = null;   // mark it free
@@ -1375,15 +1902,31 @@ public class SqueakVM {
 
     public boolean flushMethodCacheForMethod(SqueakObject method) {
         //clear cache entries for selector (prim 116)
+        SendSite.Group group = sendSiteGroupsByMethod.remove(method);
+        if (group == SendSite.SHARED)
+            sendSiteEpoch++;
+        else if (group != null)
+            group.epoch++;
         for (int i = 0; i < methodCacheSize; i++) {
             if (methodCache[i].method == method) {
                 methodCache[i].selector = null;   // mark it free
                 methodCache[i].method = null;   // release the method
             }
         }
+        if (method instanceof SqueakMethod)
+            ((SqueakMethod) method).methodFlushDecoded();
         return true;
     }
 
+    public long getSendSiteHits() {
+        return sendSiteHits;
+    }
+
+    public long getSendSiteMisses() {
+        //Sends not answered by their SendSite, including those at megamorphic sites
+        return sendSiteMisses;
+    }
+
     public MethodCacheEntry findMethodCacheEntry(SqueakObject selector, SqueakObject lkupClass) {
         //Probe the cache, and return the matching entry if found
         //Otherwise return one that can be used (selector and class set) with method= null.
@@ -1424,7 +1967,7 @@ public class SqueakVM {
         System.err.println();
         System.err.println(byteCount + " rcvr= " + printString(receiver));
         System.err.println("depth= " + stackDepth() + "; top= " + printString(top()));
-        System.err.println("pc= " + pc + "; sp= " + sp + "; nextByte= " + (((byte[]) method.bits)[pc + 1] & 0xff));
+        System.err.println("pc= " + pc + "; sp= " + sp + "; nextByte= " + (((byte[]) method.getBits())[pc + 1] & 0xff));
         // if (byteCount==1764)
         //    byteCount= byteCount;  // <-- break here 
     }
@@ -1502,7 +2045,7 @@ public class SqueakVM {
             msb = depth > 0;
             if (depth < 0)
                 depth = 0 - depth;
-            Object maybeBytes = ((SqueakObject) bitsObject).bits;
+            Object maybeBytes = ((SqueakObject) bitsObject).getBits();
             if (maybeBytes == null || maybeBytes instanceof byte[])
                 return false;  //Happens with compressed bits
             bits = (int[]) maybeBytes;
@@ -27,7 +27,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 
 public class Starter {
     /**
@@ -38,13 +41,16 @@ public class Starter {
     /**
      * Locate a startable image as a resource.
      */
-    private static SqueakImage locateStartableImage() throws IOException {
+    static SqueakImage locateStartableImage() throws IOException {
         //File saved= new File( pathname );
         //if (saved.exists()) return new SqueakImage(saved);
         // and only if no image name was given
         URL imageUrl = Starter.class.getResource(MINI_IMAGE);
-        if ("file".equals(imageUrl.getProtocol()))
-            return new SqueakImage(new File(imageUrl.getPath()));
+        if ("file".equals(imageUrl.getProtocol())) {
+            SqueakImage image = new SqueakImage(new File(imageUrl.getPath()));
+            image.saveToDefaultFile();
+            return image;
+        }
 
         InputStream ims = Starter.class.getResourceAsStream(MINI_IMAGE);
         if (ims != null)
@@ -65,17 +71,81 @@ public class Starter {
     }
 
     /**
-     * @param args first arg may specify image file name
+     * Boot the image into its UI, or with -eval or -filein run it as a batch job:
+     * <pre>
+     * Starter [-eval expression | -filein file]... [-timeout seconds] [image]
+     * </pre>
+     * A batch job runs each expression and file-in in turn, headless, printing
+     * the printString of each expression's value to stdout; other output of the
+     * VM goes to stderr.  It exits with 0 when all succeed, 1 at the first
+     * Smalltalk error, 2 for bad arguments and 3 on timeout.
+     *
+     * @param args options, then the image file name, if not the mini image
      */
     public static void main(String[] args) throws IOException, NullPointerException, java.lang.ArrayIndexOutOfBoundsException {
+        List<String[]> batch = new ArrayList<>();
+        int timeout = 0;
+        String imageName = null;
+        for (int i = 0; i < args.length; i++) {
+            if (("-eval".equals(args[i]) || "-filein".equals(args[i])) && i + 1 < args.length) {
+                batch.add(new String[]{args[i], args[++i]});
+            } else if ("-timeout".equals(args[i]) && i + 1 < args.length) {
+                timeout = Integer.parseInt(args[++i]);
+            } else if (args[i].startsWith("-") || imageName != null) {
+                System.err.println("Usage: Starter [-eval expression | -filein file]... [-timeout seconds] [image]");
+                System.exit(2);
+            } else {
+                imageName = args[i];
+            }
+        }
         SqueakVM.initSmallIntegerCache();
-        SqueakImage img = args.length > 0 ? locateSavedImage(args[1])
+        if (!batch.isEmpty())
+            System.exit(runBatch(batch, timeout, imageName));
+        SqueakImage img = imageName != null ? locateSavedImage(imageName)
                 : locateStartableImage();
         SqueakVM vm = new SqueakVM(img);
         SqueakVM.INSTANCE = vm;
         vm.run();
     }
 
+    private static int runBatch(List<String[]> batch, int timeout, String imageName) throws IOException {
+        PrintStream results = System.out;
+        System.setOut(System.err);
+        if (timeout > 0) {
+            Thread watchdog = new Thread(() -> {
+                try {
+                    Thread.sleep(timeout * 1000L);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                System.err.println("Timed out after " + timeout + " s");
+                Runtime.getRuntime().halt(3);
+            }, "JSqueak batch timeout");
+            watchdog.setDaemon(true);
+            watchdog.start();
+        }
+        SqueakImage img = imageName != null ? locateSavedImage(imageName)
+                : locateStartableImage();
+        SqueakVM vm = new SqueakVM(img);
+        SqueakVM.INSTANCE = vm;
+        BatchEvaluator evaluator = new BatchEvaluator(vm);
+        try {
+            for (String[] job : batch) {
+                if ("-eval".equals(job[0]))
+                    results.println(evaluator.evaluate(job[1]));
+                else
+                    evaluator.fileIn(job[1]);
+            }
+        } catch (BatchEvaluator.SmalltalkError e) {
+            System.err.println("Error: " + e.getMessage());
+            System.err.println(e.shortStack.replace('\r', '\n'));
+            return 1;
+        } finally {
+            results.flush();
+        }
+        return 0;
+    }
+
     //Simulation sim= new Simulation(vm);
     //sim.run();
     //if (sim.getState() == Executable.CANCELLED) {